@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Additive-increase/multiplicative-decrease (AIMD) control of the count of
+ * concurrent downloads from a single host.
+ * <p>
+ * Downloads proceed in rounds, a round being as many completed downloads as
+ * the current limit. After each round, the limit is increased by one if the
+ * throughput (bytes/s) of the round exceeded that of the previous round; it is
+ * halved (at most once per cooldown period) upon any failed download --
+ * notably throttling (status 429 or 503) -- and upon any response latency
+ * spiking far above the baseline latency of the host. Retries are delayed by
+ * exponential backoff with full jitter (see {@link #getBackoffMillis}).
+ *
+ * @author Daniel Vimont
+ */
+public class AdaptiveConcurrencyController {
+
+    private static final double THROUGHPUT_GAIN_THRESHOLD = 1.05;
+    private static final double LATENCY_SPIKE_FACTOR = 4.0;
+    private static final long MIN_LATENCY_SPIKE_NANOS = 1_000_000_000L;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final long DECREASE_COOLDOWN_NANOS = 1_000_000_000L;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final String host;
+    private final int maxLimit;
+    private int limit = 1;
+    private int inFlight;
+    private int roundCompletions;
+    private long roundBytes;
+    private long roundStartNanos = System.nanoTime();
+    private double previousRoundThroughput;
+    private double smoothedLatencyNanos = -1;
+    private double baselineLatencyNanos = Double.MAX_VALUE;
+    private long lastDecreaseNanos = System.nanoTime() - DECREASE_COOLDOWN_NANOS;
+
+    /**
+     * @param host name of the host (for logging)
+     * @param maxLimit maximum count of concurrent downloads from the host
+     */
+    public AdaptiveConcurrencyController(String host, int maxLimit) {
+        this.host = host;
+        this.maxLimit = Math.max(1, maxLimit);
+    }
+
+    /**
+     * Blocks until fewer downloads than the current limit are in flight.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param latencyNanos time from the opening of a connection until the
+     *   response headers were received
+     */
+    public synchronized void onResponse(long latencyNanos) {
+        if (smoothedLatencyNanos < 0) {
+            smoothedLatencyNanos = latencyNanos;
+        } else {
+            smoothedLatencyNanos += LATENCY_SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+        }
+        baselineLatencyNanos = Math.min(baselineLatencyNanos, smoothedLatencyNanos);
+        if (latencyNanos > LATENCY_SPIKE_FACTOR * baselineLatencyNanos
+                && latencyNanos > MIN_LATENCY_SPIKE_NANOS) {
+            decrease(String.format("latency of %d ms vs. baseline of %d ms",
+                    latencyNanos / 1_000_000, (long) baselineLatencyNanos / 1_000_000));
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (++roundCompletions < limit) {
+            return;
+        }
+        double elapsedSeconds = Math.max(1e-3, (System.nanoTime() - roundStartNanos) / 1e9);
+        double throughput = roundBytes / elapsedSeconds;
+        if (throughput > previousRoundThroughput * THROUGHPUT_GAIN_THRESHOLD
+                && limit < maxLimit) {
+            setLimit(limit + 1, String.format("throughput %.1f MB/s", throughput / (1 << 20)));
+        }
+        previousRoundThroughput = throughput;
+        startRound();
+    }
+
+    /**
+     * @param reason reason for the failure (for logging)
+     */
+    public synchronized void onFailure(String reason) {
+        decrease(reason);
+    }
+
+    private void decrease(String reason) {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        setLimit(Math.max(1, limit / 2), reason);
+        // the next full round is compared to nothing, so concurrency then grows again
+        previousRoundThroughput = 0;
+        startRound();
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        if (newLimit != limit) {
+            System.out.println("** Concurrent downloads from " + host + ": " + limit + " -> "
+                    + newLimit + " (" + reason + ")");
+            limit = newLimit;
+            notifyAll();
+        }
+    }
+
+    private void startRound() {
+        roundCompletions = 0;
+        roundBytes = 0;
+        roundStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @param inputStream stream of a download from the host
+     * @return stream which adds each byte read to the throughput of the current round
+     */
+    public InputStream meter(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    addBytes(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    addBytes(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    private synchronized void addBytes(long count) {
+        roundBytes += count;
+    }
+
+    /**
+     * Exponential backoff with "full jitter" (a uniformly random delay of up to
+     * the exponential bound), so that workers throttled at the same moment do
+     * not all retry at the same moment.
+     *
+     * @param attempt count of attempts already failed (1 or more)
+     * @param retryAfterMillis delay requested by the server (0 if none)
+     * @return milliseconds to wait before the next attempt
+     */
+    public static long getBackoffMillis(int attempt, long retryAfterMillis) {
+        long bound = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return Math.max(retryAfterMillis, ThreadLocalRandom.current().nextLong(bound + 1));
+    }
+}
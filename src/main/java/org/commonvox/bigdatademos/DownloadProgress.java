@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe progress counters of a set of concurrent file downloads, reported
+ * (via {@link #report}) as files/s, MB/s, and estimated time remaining. Bytes are
+ * counted as they stream in (via {@link #countingStream}), so throughput is live
+ * even while large files are in progress; the aggregate rate of all streams may
+ * optionally be capped.
+ *
+ * @author Daniel Vimont
+ */
+public class DownloadProgress {
+
+    private final int totalFiles;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger completedFiles = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long maxBytesPerSecond;
+    // time at which the bandwidth cap next permits bytes to be read
+    private long nextReadNanos = System.nanoTime();
+
+    /**
+     * @param totalFiles count of files to be downloaded
+     * @param maxBytesPerSecond cap on the aggregate rate of all streams (0 for no cap)
+     */
+    public DownloadProgress(int totalFiles, long maxBytesPerSecond) {
+        this.totalFiles = totalFiles;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void fileCompleted() {
+        completedFiles.incrementAndGet();
+    }
+
+    public void fileFailed() {
+        failedFiles.incrementAndGet();
+    }
+
+    /**
+     * Records that a completed file needed no copying (e.g., was already present
+     * and verified); it must also be recorded via {@link #fileCompleted}.
+     */
+    public void fileSkipped() {
+        skippedFiles.incrementAndGet();
+    }
+
+    public int getCompletedFiles() {
+        return completedFiles.get();
+    }
+
+    public int getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @param inputStream stream of a file being downloaded
+     * @return stream which adds each byte read to the byte count of this progress
+     *   (and which is slowed as needed to keep within the bandwidth cap)
+     */
+    public InputStream countingStream(InputStream inputStream) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.incrementAndGet();
+                    throttle(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    bytes.addAndGet(count);
+                    throttle(count);
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Reserves the transfer time of the bytes read against the bandwidth cap, and
+     * sleeps until the reserved time arrives.
+     */
+    private void throttle(long count) throws IOException {
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextReadNanos = Math.max(nextReadNanos, now) + count * 1_000_000_000L / maxBytesPerSecond;
+            waitNanos = nextReadNanos - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Prints a single line of progress, e.g.:
+     * "** Progress: 120/8760 files (0 failed, 20 skipped), 3.4 files/s, 45.2 MB/s, ETA 00:42:10"
+     */
+    public void report() {
+        double elapsedSeconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        int finishedFiles = completedFiles.get() + failedFiles.get();
+        double filesPerSecond = completedFiles.get() / elapsedSeconds;
+        double megabytesPerSecond = bytes.get() / elapsedSeconds / (1 << 20);
+        // skipped files take no time, so are excluded from the basis of the ETA
+        int copiedOrFailedFiles = finishedFiles - skippedFiles.get();
+        String eta = "--:--:--";
+        if (finishedFiles == totalFiles) {
+            eta = "00:00:00";
+        } else if (copiedOrFailedFiles > 0) {
+            long etaSeconds = Math.round(
+                    (totalFiles - finishedFiles) * elapsedSeconds / copiedOrFailedFiles);
+            eta = String.format("%02d:%02d:%02d",
+                    etaSeconds / 3600, (etaSeconds / 60) % 60, etaSeconds % 60);
+        }
+        System.out.println(String.format(
+                "** Progress: %d/%d files (%d failed, %d skipped), %.1f files/s, %.1f MB/s, ETA %s",
+                completedFiles.get(), totalFiles, failedFiles.get(), skippedFiles.get(),
+                filesPerSecond, megabytesPerSecond, eta));
+    }
+}
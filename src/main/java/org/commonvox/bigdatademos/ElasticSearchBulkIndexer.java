@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Sends (action, document) pairs to the _bulk endpoint of an index in requests
+ * of bounded size, a number of requests being in flight at once.
+ * <p>
+ * Pairs are accumulated in a {@link Batch}, which is handed off as a bulk
+ * request as soon as it holds the maximum count of documents, or as soon as the
+ * next pair would take it past the maximum count of bytes. At most maxInFlight
+ * requests are sent (or waiting to be sent) at once; a batch handed off while
+ * that many are pending blocks its caller until one completes, so that input is
+ * never read faster than the cluster indexes it.
+ * <p>
+ * Bulk responses are examined only for failures, which are counted by status.
+ * Documents rejected for lack of capacity (status 429, or 502/503/504, or an
+ * I/O error) are resent -- only those documents -- with exponential backoff
+ * (with jitter), up to maxRetries times; documents which fail otherwise, or
+ * are still rejected after maxRetries retries, are appended to a dead-letter
+ * file, in bulk format (so that the file may itself be loaded once the cause
+ * of the failures is dealt with), or are only counted, if no dead-letter file
+ * is given (as by {@link ElasticSearchSink}, which instead fails its task).
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchBulkIndexer implements Closeable {
+
+    private static final ContentType NDJSON_CONTENT_TYPE =
+            ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    // ElasticSearch begins each bulk response with "took" and "errors"
+    private static final Pattern ERROR_FREE_RESPONSE =
+            Pattern.compile("\\{\\s*\"took\"\\s*:\\s*\\d+\\s*,\\s*\"errors\"\\s*:\\s*false");
+    private static final String IO_ERROR_STATUS = "I/O error";
+    private static final String UNEXPECTED_ERROR_STATUS = "unexpected error";
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private final RestClient client;
+    private final String endpoint;
+    private final int maxDocs;
+    private final int maxBytes;
+    private final int maxRetries;
+    private final Path deadLetterPath;
+    private final Semaphore inFlightPermits;
+    private final ExecutorService senders;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong indexedDocs = new AtomicLong();
+    private final AtomicLong retriedDocs = new AtomicLong();
+    private final AtomicLong failedDocs = new AtomicLong();
+    private final Map<String, AtomicLong> failureCountsByStatus = new ConcurrentHashMap<>();
+    private OutputStream deadLetterStream;
+
+    /**
+     * @param client client of the ElasticSearch cluster
+     * @param endpoint bulk endpoint, e.g. "/popular-pages/interval_type/_bulk"
+     * @param maxDocs maximum count of documents per bulk request
+     * @param maxBytes maximum count of bytes per bulk request (exceeded only by
+     *   a request of a single document)
+     * @param maxInFlight maximum count of bulk requests in flight at once
+     * @param maxRetries maximum count of times a rejected document is resent
+     * @param deadLetterPath file to which documents that fail are appended
+     *   (null for none)
+     */
+    public ElasticSearchBulkIndexer(RestClient client, String endpoint,
+            int maxDocs, int maxBytes, int maxInFlight, int maxRetries, Path deadLetterPath) {
+        this(client, endpoint, maxDocs, maxBytes, new Semaphore(Math.max(1, maxInFlight)),
+                maxInFlight, maxRetries, deadLetterPath);
+    }
+
+    /**
+     * @param inFlightPermits permits for bulk requests in flight, which may be
+     *   shared by several indexers (e.g., by all tasks of a Spark executor)
+     * @param maxInFlight maximum count of bulk requests of this indexer in flight at once
+     */
+    ElasticSearchBulkIndexer(RestClient client, String endpoint, int maxDocs, int maxBytes,
+            Semaphore inFlightPermits, int maxInFlight, int maxRetries, Path deadLetterPath) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.maxDocs = Math.max(1, maxDocs);
+        this.maxBytes = maxBytes;
+        this.maxRetries = maxRetries;
+        this.deadLetterPath = deadLetterPath;
+        this.inFlightPermits = inFlightPermits;
+        this.senders = Executors.newFixedThreadPool(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * @return a new (initially empty) batch; a batch is to be used by only one thread
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getIndexedDocs() {
+        return indexedDocs.get();
+    }
+
+    /**
+     * @return count of documents which were resent (once per resending)
+     */
+    public long getRetriedDocs() {
+        return retriedDocs.get();
+    }
+
+    /**
+     * @return count of documents which failed (and were written to the
+     *   dead-letter file, if any)
+     */
+    public long getFailedDocs() {
+        return failedDocs.get();
+    }
+
+    public Path getDeadLetterPath() {
+        return deadLetterPath;
+    }
+
+    /**
+     * @return counts of failed attempts to index a document, by status (e.g., "429")
+     */
+    public Map<String, Long> getFailureCountsByStatus() {
+        Map<String, Long> failureCounts = new TreeMap<>();
+        failureCountsByStatus.forEach((status, count) -> failureCounts.put(status, count.get()));
+        return failureCounts;
+    }
+
+    /**
+     * Waits for all bulk requests handed off so far to complete.
+     */
+    @Override
+    public void close() throws IOException {
+        senders.shutdown();
+        try {
+            senders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while awaiting bulk requests", ex);
+        } finally {
+            synchronized (this) {
+                if (deadLetterStream != null) {
+                    deadLetterStream.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks (while maxInFlight requests are pending) until the request can be
+     * handed off to a sender.
+     *
+     * @param itemOffsets offset of each (action, document) pair in the request
+     *   body, followed by the length of the body
+     */
+    private void submit(byte[] requestBody, int[] itemOffsets) throws InterruptedException {
+        inFlightPermits.acquire();
+        senders.execute(() -> {
+            try {
+                send(requestBody, itemOffsets);
+            } finally {
+                inFlightPermits.release();
+            }
+        });
+    }
+
+    /**
+     * Sends the request, then resends any rejected documents (holding the
+     * in-flight permit of the request all the while); upon any unexpected
+     * error (e.g., a bulk response not of the expected form), all documents of
+     * the request are dead-lettered, rather than lost along with the task.
+     */
+    private void send(byte[] requestBody, int[] itemOffsets) {
+        try {
+            sendWithRetries(requestBody, itemOffsets);
+        } catch (RuntimeException ex) {
+            int itemCount = itemOffsets.length - 1;
+            countFailures(UNEXPECTED_ERROR_STATUS, itemCount);
+            deadLetter(requestBody, itemOffsets, allItems(itemCount),
+                    "bulk request failed with unexpected error: " + ex);
+        }
+    }
+
+    private void sendWithRetries(byte[] requestBody, int[] itemOffsets) {
+        for (int attempt = 0; ; attempt++) {
+            requests.incrementAndGet();
+            int itemCount = itemOffsets.length - 1;
+            int[] rejectedItems;
+            try {
+                Response response = client.performRequest("POST", endpoint,
+                        Collections.<String, String>emptyMap(),
+                        new ByteArrayEntity(requestBody, NDJSON_CONTENT_TYPE));
+                rejectedItems = assessResponse(response, requestBody, itemOffsets);
+            } catch (ResponseException ex) {
+                int status = ex.getResponse().getStatusLine().getStatusCode();
+                countFailures(String.valueOf(status), itemCount);
+                if (!isRetryable(status)) {
+                    deadLetter(requestBody, itemOffsets, allItems(itemCount),
+                            "bulk request failed with status " + status);
+                    return;
+                }
+                rejectedItems = allItems(itemCount);
+            } catch (IOException ex) {
+                countFailures(IO_ERROR_STATUS, itemCount);
+                rejectedItems = allItems(itemCount);
+            }
+            if (rejectedItems.length == 0) {
+                return;
+            }
+            if (attempt >= maxRetries) {
+                deadLetter(requestBody, itemOffsets, rejectedItems,
+                        "still rejected after " + maxRetries + " retries");
+                return;
+            }
+            long backoffMillis = getBackoffMillis(attempt);
+            System.out.println("**** " + rejectedItems.length + " of " + itemCount
+                    + " documents rejected; resending in " + backoffMillis + " ms (retry "
+                    + (attempt + 1) + " of " + maxRetries + ")");
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                deadLetter(requestBody, itemOffsets, rejectedItems, "interrupted");
+                return;
+            }
+            retriedDocs.addAndGet(rejectedItems.length);
+            // the request body is cut down to the rejected pairs only
+            ByteArrayOutputStream retryBody = new ByteArrayOutputStream();
+            int[] retryOffsets = new int[rejectedItems.length + 1];
+            for (int i = 0; i < rejectedItems.length; i++) {
+                retryOffsets[i] = retryBody.size();
+                int item = rejectedItems[i];
+                retryBody.write(requestBody, itemOffsets[item],
+                        itemOffsets[item + 1] - itemOffsets[item]);
+            }
+            retryOffsets[rejectedItems.length] = retryBody.size();
+            requestBody = retryBody.toByteArray();
+            itemOffsets = retryOffsets;
+        }
+    }
+
+    /**
+     * Counts the indexed documents, and dead-letters the documents which failed
+     * other than by rejection.
+     *
+     * @return indexes (in the request) of documents rejected (to be resent)
+     */
+    private int[] assessResponse(Response response, byte[] requestBody, int[] itemOffsets)
+            throws IOException {
+        int itemCount = itemOffsets.length - 1;
+        String content = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        // the items of an error-free response need not be looked at (nor parsed)
+        if (ERROR_FREE_RESPONSE.matcher(content).lookingAt()) {
+            indexedDocs.addAndGet(itemCount);
+            return new int[0];
+        }
+        JSONObject responseJson;
+        try {
+            responseJson = (JSONObject) new JSONParser().parse(content);
+        } catch (ParseException ex) {
+            throw new IOException("Unparseable bulk response", ex);
+        }
+        if (!Boolean.TRUE.equals(responseJson.get("errors"))) {
+            indexedDocs.addAndGet(itemCount);
+            return new int[0];
+        }
+        // items of the response are in the order of the documents of the request
+        JSONArray items = (JSONArray) responseJson.get("items");
+        int[] rejectedItems = new int[itemCount];
+        int rejectedCount = 0;
+        int[] failedItems = new int[itemCount];
+        int failedCount = 0;
+        Object firstError = null;
+        for (int i = 0; i < items.size(); i++) {
+            JSONObject itemResponse =
+                    (JSONObject) ((JSONObject) items.get(i)).values().iterator().next();
+            if (itemResponse.get("error") == null) {
+                indexedDocs.incrementAndGet();
+                continue;
+            }
+            int status = ((Number) itemResponse.get("status")).intValue();
+            countFailures(String.valueOf(status), 1);
+            if (isRetryable(status)) {
+                rejectedItems[rejectedCount++] = i;
+            } else {
+                if (firstError == null) {
+                    firstError = itemResponse.get("error");
+                }
+                failedItems[failedCount++] = i;
+            }
+        }
+        if (failedCount > 0) {
+            deadLetter(requestBody, itemOffsets, Arrays.copyOf(failedItems, failedCount),
+                    "failed to be indexed, e.g.: " + firstError);
+        }
+        return Arrays.copyOf(rejectedItems, rejectedCount);
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    private static int[] allItems(int itemCount) {
+        int[] items = new int[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            items[i] = i;
+        }
+        return items;
+    }
+
+    private void countFailures(String status, int count) {
+        failureCountsByStatus.computeIfAbsent(status, key -> new AtomicLong()).addAndGet(count);
+    }
+
+    /**
+     * Exponential backoff with "full jitter" (a uniformly random delay of up to
+     * the exponential bound), so that senders rejected at the same moment do
+     * not all resend at the same moment.
+     */
+    private static long getBackoffMillis(int attempt) {
+        long bound = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Appends the (action, document) pairs of the given items to the dead-letter
+     * file (if any).
+     */
+    private synchronized void deadLetter(byte[] requestBody, int[] itemOffsets, int[] items,
+            String reason) {
+        failedDocs.addAndGet(items.length);
+        if (deadLetterPath == null) {
+            System.out.println("**** " + items.length + " documents failed; " + reason);
+            return;
+        }
+        System.out.println("**** " + items.length + " documents written to dead-letter file <"
+                + deadLetterPath + ">; " + reason);
+        try {
+            if (deadLetterStream == null) {
+                if (deadLetterPath.getParent() != null) {
+                    Files.createDirectories(deadLetterPath.getParent());
+                }
+                deadLetterStream = new BufferedOutputStream(Files.newOutputStream(deadLetterPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            }
+            for (int item : items) {
+                deadLetterStream.write(requestBody, itemOffsets[item],
+                        itemOffsets[item + 1] - itemOffsets[item]);
+            }
+            deadLetterStream.flush();
+        } catch (IOException ex) {
+            System.out.println("**** Failed to write to dead-letter file <" + deadLetterPath
+                    + ">: " + ex);
+        }
+    }
+
+    /**
+     * Pairs accumulated for the next bulk request.
+     */
+    public class Batch {
+        private final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        private int[] itemOffsets = new int[64];
+        private int docCount;
+
+        private Batch() { }
+
+        /**
+         * @param docId _id of the document
+         * @param json the document
+         */
+        public void add(String docId, String json) throws InterruptedException {
+            addPair(SimpleJson.bulkIndexAction(docId), json);
+        }
+
+        /**
+         * @param actionLine bulk action line, e.g. {"index":{"_id":"20161023"}}
+         * @param docLine the document (on a single line)
+         */
+        public void addPair(String actionLine, String docLine) throws InterruptedException {
+            byte[] actionBytes = actionLine.getBytes(StandardCharsets.UTF_8);
+            byte[] docBytes = docLine.getBytes(StandardCharsets.UTF_8);
+            if (docCount > 0
+                    && requestBody.size() + actionBytes.length + docBytes.length + 2 > maxBytes) {
+                flush();
+            }
+            if (docCount == itemOffsets.length) {
+                itemOffsets = Arrays.copyOf(itemOffsets, docCount * 2);
+            }
+            itemOffsets[docCount] = requestBody.size();
+            requestBody.write(actionBytes, 0, actionBytes.length);
+            requestBody.write('\n');
+            requestBody.write(docBytes, 0, docBytes.length);
+            requestBody.write('\n');
+            if (++docCount >= maxDocs) {
+                flush();
+            }
+        }
+
+        /**
+         * Hands off the pairs accumulated so far (if any) as a bulk request.
+         */
+        public void flush() throws InterruptedException {
+            if (docCount == 0) {
+                return;
+            }
+            int[] offsets = Arrays.copyOf(itemOffsets, docCount + 1);
+            offsets[docCount] = requestBody.size();
+            submit(requestBody.toByteArray(), offsets);
+            requestBody.reset();
+            docCount = 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Index template of the documents outputted by SparkDriver (one document per
+ * interval, bearing an array of its top pages), with mappings suited to the
+ * queries made of them, in place of dynamic mappings:
+ * <ul>
+ * <li>rank and views are numeric (so range queries and sorts are numeric, even
+ *   for documents in which they are JSON strings, which are coerced);</li>
+ * <li>interval and pageId are keywords (not analyzed; exact-match and terms
+ *   aggregations);</li>
+ * <li>url is kept in _source only (neither indexed nor given doc values);</li>
+ * <li>topic is analyzed text only (without a keyword sub-field); and</li>
+ * <li>the _all field is disabled.</li>
+ * </ul>
+ * A template applies to an index only as the index is created; so an index
+ * which already exists keeps its mappings until it is reindexed.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchIndexTemplate {
+
+    // to be incremented upon any change to the template, so that it is upgraded
+    public static final int TEMPLATE_VERSION = 1;
+    private static final int NOT_FOUND = 404;
+
+    /**
+     * Installs the template (applying to the given index name), unless an
+     * equal or later version of it is already installed.
+     *
+     * @param client client of the ElasticSearch cluster
+     * @param index name of the index
+     * @param type name of the document type
+     */
+    public static void install(RestClient client, String index, String type) throws IOException {
+        String templateEndpoint = "/_template/" + getTemplateName(index);
+        long installedVersion = getInstalledVersion(client, templateEndpoint);
+        if (installedVersion >= TEMPLATE_VERSION) {
+            System.out.println("** Index template <" + getTemplateName(index) + "> version "
+                    + installedVersion + " is already installed");
+            return;
+        }
+        client.performRequest("PUT", templateEndpoint, Collections.<String, String>emptyMap(),
+                new StringEntity(getTemplate(index, type), ContentType.APPLICATION_JSON));
+        System.out.println("** Index template <" + getTemplateName(index) + "> version "
+                + TEMPLATE_VERSION + (installedVersion < 0 ? " installed" : " installed, replacing "
+                        + "version " + installedVersion));
+        if (client.performRequest("HEAD", "/" + index).getStatusLine().getStatusCode()
+                != NOT_FOUND) {
+            System.out.println("**** Index <" + index + "> already exists, so keeps its existing "
+                    + "mappings; the template applies to it only once it is deleted and reloaded "
+                    + "(or reindexed)");
+        }
+    }
+
+    public static String getTemplateName(String index) {
+        return "wikitrends-" + index;
+    }
+
+    /**
+     * @return version of the installed template (0 if it bears no version), or
+     *   -1 if no template is installed
+     */
+    private static long getInstalledVersion(RestClient client, String templateEndpoint)
+            throws IOException {
+        Response response;
+        try {
+            response = client.performRequest("GET", templateEndpoint);
+        } catch (ResponseException ex) {
+            if (ex.getResponse().getStatusLine().getStatusCode() == NOT_FOUND) {
+                return -1;
+            }
+            throw ex;
+        }
+        try {
+            // e.g. {"wikitrends-popular-pages":{"order":0,"version":1,"template":...}}
+            JSONObject responseJson = (JSONObject) new JSONParser().parse(
+                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+            if (responseJson.isEmpty()) {
+                return -1;
+            }
+            Object version = ((JSONObject) responseJson.values().iterator().next()).get("version");
+            return version == null ? 0 : ((Number) version).longValue();
+        } catch (ParseException | RuntimeException ex) {
+            throw new IOException("Unparseable index template at " + templateEndpoint, ex);
+        }
+    }
+
+    static String getTemplate(String index, String type) {
+        return new SimpleJson.Writer()
+                .beginObject()
+                        .field("template", index)
+                        .field("version", TEMPLATE_VERSION)
+                        .name("mappings").beginObject()
+                                .name(type).beginObject()
+                                        .name("_all").beginObject()
+                                                .field("enabled", false).endObject()
+                                        .name("properties").beginObject()
+                                                .name("interval").beginObject()
+                                                        .field("type", "keyword").endObject()
+                                                .name("topPages").beginObject()
+                                                        .name("properties").beginObject()
+                                                                .name("rank").beginObject()
+                                                                        .field("type", "integer").endObject()
+                                                                .name("pageId").beginObject()
+                                                                        .field("type", "keyword").endObject()
+                                                                .name("url").beginObject()
+                                                                        .field("type", "keyword")
+                                                                        .field("index", false)
+                                                                        .field("doc_values", false).endObject()
+                                                                .name("topic").beginObject()
+                                                                        .field("type", "text").endObject()
+                                                                .name("views").beginObject()
+                                                                        .field("type", "long").endObject()
+                                                        .endObject()
+                                                .endObject()
+                                        .endObject()
+                                .endObject()
+                        .endObject()
+                .endObject()
+                .toString();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Tunes an index for bulk loading, and restores it afterwards: while loading,
+ * the index is not refreshed (refresh_interval -1) and not replicated
+ * (number_of_replicas 0); afterwards, the index is refreshed once, optionally
+ * force-merged, and then its original settings are restored (after any force
+ * merge, so that only merged segments are copied to its replicas).
+ * <p>
+ * The original settings are printed when the index is tuned, so that they may
+ * be restored by hand should the loader be killed before it can restore them.
+ * Requests are sent via a client of its own, which (unlike the client used for
+ * bulk requests) waits indefinitely for a response, since a refresh or force
+ * merge of a large index may take many minutes.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchIndexTuner implements Closeable {
+
+    private static final String REFRESH_INTERVAL = "refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "number_of_replicas";
+    private static final int NOT_FOUND = 404;
+
+    private final RestClient client;
+    private final String index;
+    // null where the setting is not set on the index (i.e., the default applies)
+    private Object originalRefreshInterval;
+    private Object originalNumberOfReplicas;
+    private boolean tuned = false;
+
+    /**
+     * @param hosts nodes of the ElasticSearch cluster
+     * @param index name of the index (created, if it does not yet exist, by
+     *   {@link #tuneForBulkLoad})
+     */
+    public ElasticSearchIndexTuner(HttpHost[] hosts, String index) {
+        this.client = RestClient.builder(hosts)
+                .setRequestConfigCallback(requestConfigBuilder ->
+                        requestConfigBuilder.setSocketTimeout(0))
+                .setMaxRetryTimeoutMillis(Integer.MAX_VALUE)
+                .build();
+        this.index = index;
+    }
+
+    /**
+     * Records the refresh_interval and number_of_replicas of the index, and
+     * then disables both.
+     */
+    public void tuneForBulkLoad() throws IOException {
+        JSONObject indexSettings = getIndexSettings();
+        originalRefreshInterval = indexSettings.get(REFRESH_INTERVAL);
+        originalNumberOfReplicas = indexSettings.get(NUMBER_OF_REPLICAS);
+        System.out.println("** Index <" + index + "> tuned for bulk load: "
+                + REFRESH_INTERVAL + " <" + originalRefreshInterval + "> -> <-1>, "
+                + NUMBER_OF_REPLICAS + " <" + originalNumberOfReplicas + "> -> <0>");
+        putIndexSettings("-1", 0);
+        tuned = true;
+    }
+
+    /**
+     * Refreshes the index, optionally force-merges it, and restores the recorded
+     * settings (if the index was tuned).
+     *
+     * @param maxNumSegments count of segments to which each shard is to be
+     *   force-merged (0 for no force merge)
+     */
+    public void restore(int maxNumSegments) throws IOException {
+        if (!tuned) {
+            return;
+        }
+        try {
+            client.performRequest("POST", "/" + index + "/_refresh");
+            System.out.println("** Index <" + index + "> refreshed");
+            if (maxNumSegments > 0) {
+                long startNanos = System.nanoTime();
+                client.performRequest("POST", "/" + index + "/_forcemerge",
+                        Collections.singletonMap("max_num_segments", String.valueOf(maxNumSegments)));
+                System.out.println(String.format(
+                        "** Index <%s> force-merged to %d segments per shard (%.1f seconds)",
+                        index, maxNumSegments, (System.nanoTime() - startNanos) / 1e9));
+            }
+        } finally {
+            putIndexSettings(originalRefreshInterval, originalNumberOfReplicas);
+            tuned = false;
+            System.out.println("** Index <" + index + "> settings restored: "
+                    + REFRESH_INTERVAL + " <" + originalRefreshInterval + ">, "
+                    + NUMBER_OF_REPLICAS + " <" + originalNumberOfReplicas + ">");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * @return the "index" settings of the index (creating the index if it does
+     *   not yet exist)
+     */
+    private JSONObject getIndexSettings() throws IOException {
+        Response response;
+        try {
+            response = client.performRequest("GET", "/" + index + "/_settings");
+        } catch (ResponseException ex) {
+            if (ex.getResponse().getStatusLine().getStatusCode() != NOT_FOUND) {
+                throw ex;
+            }
+            client.performRequest("PUT", "/" + index);
+            System.out.println("** Index <" + index + "> created");
+            response = client.performRequest("GET", "/" + index + "/_settings");
+        }
+        try {
+            // e.g. {"popular-pages":{"settings":{"index":{"number_of_replicas":"1",...}}}}
+            JSONObject responseJson = (JSONObject) new JSONParser().parse(
+                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+            JSONObject indexJson = (JSONObject) responseJson.values().iterator().next();
+            return (JSONObject) ((JSONObject) indexJson.get("settings")).get("index");
+        } catch (ParseException | RuntimeException ex) {
+            throw new IOException("Unparseable settings of index <" + index + ">", ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putIndexSettings(Object refreshInterval, Object numberOfReplicas)
+            throws IOException {
+        // a null value resets a setting to its default
+        JSONObject indexSettings = new JSONObject();
+        indexSettings.put(REFRESH_INTERVAL, refreshInterval);
+        indexSettings.put(NUMBER_OF_REPLICAS, numberOfReplicas);
+        JSONObject settings = new JSONObject();
+        settings.put("index", indexSettings);
+        client.performRequest("PUT", "/" + index + "/_settings",
+                Collections.<String, String>emptyMap(),
+                new StringEntity(settings.toJSONString(), ContentType.APPLICATION_JSON));
+    }
+}
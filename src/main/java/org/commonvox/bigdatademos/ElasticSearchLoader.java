@@ -15,24 +15,20 @@
  */
 package org.commonvox.bigdatademos;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.http.HttpHost;
-import org.elasticsearch.action.DocWriteResponse;
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.xcontent.XContentType;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  *
@@ -42,8 +38,29 @@ public class ElasticSearchLoader {
 
     private static String esIndex; 
     private static String esType; 
-    private static JSONParser jsonParser = new JSONParser();
-    private static Long lineCounter = 0L;
+    private static final String BULK_ACTION_PREFIX = "{\"index\"";
+    // e.g. -Dwikitrends.es.nodes=es1:9200,es2:9200
+    public static final String NODES_PROPERTY = "wikitrends.es.nodes";
+    // bulk requests are cut at whichever limit (count of documents or bytes) is reached first
+    public static final String BULK_DOCS_PROPERTY = "wikitrends.es.bulkDocs";
+    public static final String BULK_BYTES_PROPERTY = "wikitrends.es.bulkBytes";
+    public static final String MAX_IN_FLIGHT_PROPERTY = "wikitrends.es.maxInFlight";
+    // documents rejected (status 429, etc.) are resent up to <maxRetries> times
+    public static final String MAX_RETRIES_PROPERTY = "wikitrends.es.maxRetries";
+    public static final String DEAD_LETTER_FILE_PROPERTY = "wikitrends.es.deadLetterFile";
+    // in bulk-load mode, the index is neither refreshed nor replicated during the load
+    public static final String BULK_LOAD_MODE_PROPERTY = "wikitrends.es.bulkLoadMode";
+    public static final String FORCE_MERGE_SEGMENTS_PROPERTY = "wikitrends.es.forceMergeSegments";
+    // the index template is installed (or upgraded) before loading, unless set to false
+    public static final String INSTALL_TEMPLATE_PROPERTY = "wikitrends.es.installTemplate";
+    // count of files read (and validated) concurrently
+    public static final String LOADER_THREADS_PROPERTY = "wikitrends.es.loaderThreads";
+    // with trusted input, only one in every <validationSampleInterval> documents is validated
+    public static final String TRUSTED_INPUT_PROPERTY = "wikitrends.es.trustedInput";
+    public static final String VALIDATION_SAMPLE_INTERVAL_PROPERTY =
+            "wikitrends.es.validationSampleInterval";
+    private static final String DEFAULT_NODES = "localhost:9200,localhost:9201";
+    private static final String DEFAULT_DEAD_LETTER_FILE = "./logs/loadElastic.deadletter.ndjson";
     
     /**
      * @param args the command line arguments
@@ -61,63 +78,111 @@ public class ElasticSearchLoader {
         loadJsonToES(inputDirectory);
     }
     
-    private static void loadJsonToES (String inputDirectory) throws IOException {
-        try (RestClient lowLevelClient = RestClient.builder(
-                new HttpHost("localhost", 9200, "http"),
-                new HttpHost("localhost", 9201, "http")).build() ) {
-            
-            RestHighLevelClient client = new RestHighLevelClient(lowLevelClient);
-        
-            for (String absoluteFilePath : getFileSet(inputDirectory)) {
-                System.out.println("** Bulk processing commencing for file: " + absoluteFilePath);
-                try (Stream<String> stream = Files.lines(Paths.get(absoluteFilePath))) {
-                    BulkRequest bulkRequest = new BulkRequest();
-                    lineCounter = 0L;
-                    stream.forEach(line -> loadJsonObject(bulkRequest, line, absoluteFilePath));
-                    if (bulkRequest.requests().size() > 0) {
-                        BulkResponse bulkResponse = client.bulk(bulkRequest);
-                        assessResponses(bulkResponse);
+    private static void loadJsonToES (String inputDirectory)
+            throws IOException, InterruptedException {
+        int maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 4);
+        int loaderThreads = Integer.getInteger(LOADER_THREADS_PROPERTY,
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        String endpoint = "/" + esIndex + "/" + esType + "/_bulk";
+        Set<String> fileSet = getFileSet(inputDirectory);
+        long startNanos = System.nanoTime();
+        ElasticSearchIndexTuner indexTuner = null;
+        try (RestClient lowLevelClient = RestClient.builder(getHosts())
+                .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                        .setMaxConnPerRoute(maxInFlight)
+                        .setMaxConnTotal(maxInFlight * 2))
+                .build() ) {
+            ElasticSearchBulkIndexer indexer = new ElasticSearchBulkIndexer(lowLevelClient,
+                    endpoint, Integer.getInteger(BULK_DOCS_PROPERTY, 5000),
+                    Integer.getInteger(BULK_BYTES_PROPERTY, 8 << 20), maxInFlight,
+                    Integer.getInteger(MAX_RETRIES_PROPERTY, 5),
+                    Paths.get(System.getProperty(DEAD_LETTER_FILE_PROPERTY, DEFAULT_DEAD_LETTER_FILE)));
+            if (Boolean.parseBoolean(System.getProperty(INSTALL_TEMPLATE_PROPERTY, "true"))) {
+                ElasticSearchIndexTemplate.install(lowLevelClient, esIndex, esType);
+            }
+            if (Boolean.getBoolean(BULK_LOAD_MODE_PROPERTY)) {
+                indexTuner = new ElasticSearchIndexTuner(getHosts(), esIndex);
+                indexTuner.tuneForBulkLoad();
+            }
+            AtomicInteger completedFiles = new AtomicInteger();
+            AtomicInteger failedFiles = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(loaderThreads);
+            try {
+                for (String absoluteFilePath : fileSet) {
+                    workers.execute(() -> {
+                        try {
+                            FileLoader fileLoader = new FileLoader(indexer.newBatch(), absoluteFilePath);
+                            fileLoader.load();
+                            fileLoader.report(completedFiles.incrementAndGet(), fileSet.size());
+                        } catch (IOException | RuntimeException ex) {
+                            failedFiles.incrementAndGet();
+                            System.out.println("**** Loading of file failed: " + absoluteFilePath
+                                    + " -- " + ex);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                }
+                workers.shutdown();
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                workers.shutdownNow();
+                try {
+                    indexer.close();
+                } finally {
+                    if (indexTuner != null) {
+                        indexTuner.restore(Integer.getInteger(FORCE_MERGE_SEGMENTS_PROPERTY, 0));
                     }
                 }
             }
+            double elapsedSeconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+            System.out.println(String.format(
+                    "** Bulk loading completed: %d/%d files (%d failed), %d documents indexed, "
+                    + "%d failed, in %d bulk requests; %.1f seconds, %.1f docs/s",
+                    completedFiles.get(), fileSet.size(), failedFiles.get(),
+                    indexer.getIndexedDocs(), indexer.getFailedDocs(), indexer.getRequests(),
+                    elapsedSeconds, indexer.getIndexedDocs() / elapsedSeconds));
+            if (!indexer.getFailureCountsByStatus().isEmpty()) {
+                System.out.println("** Failed attempts to index a document, by status: "
+                        + indexer.getFailureCountsByStatus() + "; documents resent: "
+                        + indexer.getRetriedDocs());
+            }
+            if (indexer.getFailedDocs() > 0) {
+                System.out.println("**** " + indexer.getFailedDocs()
+                        + " documents could not be indexed, and were written to dead-letter file <"
+                        + indexer.getDeadLetterPath() + ">");
+            }
+        } finally {
+            if (indexTuner != null) {
+                indexTuner.close();
+            }
         }
     }
     
-    private static void loadJsonObject(BulkRequest bulkRequest, String line, String fileName) {
-        ++lineCounter;
-        if (line.isEmpty()) {
-            return;
-        }
-        int firstCommaPosition = line.indexOf(','); // 9--daily, 7--monthly, 5--yearly
-        String docId = line.substring(1, firstCommaPosition);
-        String jsonObject = line.substring(firstCommaPosition + 1, line.length() - 1);
-        if (isValidJSON(jsonObject)) {
-            // System.out.println("**** Adding JSON with the following docId to bulkRequest: " + docId);
-            bulkRequest.add(new IndexRequest(esIndex, esType, docId)  
-                    .source(jsonObject, XContentType.JSON));
-        } else {
-            System.out.println("**** Invalid JSON encountered in input file: "
-                    + fileName + "line: " + lineCounter);
+    private static HttpHost[] getHosts() {
+        String[] hostsAndPorts = System.getProperty(NODES_PROPERTY, DEFAULT_NODES).split(",");
+        HttpHost[] hosts = new HttpHost[hostsAndPorts.length];
+        for (int i = 0; i < hostsAndPorts.length; i++) {
+            hosts[i] = HttpHost.create(hostsAndPorts[i].trim());
         }
+        return hosts;
     }
-     
-    private static void assessResponses(BulkResponse responses) {
-        System.out.println("** Bulk responses start...");
-        for (BulkItemResponse bulkItemResponse : responses) { 
-            DocWriteResponse itemResponse = bulkItemResponse.getResponse();
-            String responseStatus;
-            String responseResult;
-            if (itemResponse == null) {
-                responseStatus = "null";
-                responseResult = "null";
-            } else {
-                responseStatus = itemResponse.status().name();
-                responseResult = itemResponse.getResult().toString();
-            }
-            System.out.println("**** Response status: <" + responseStatus
-                    + ">. Details: <" + responseResult + ">");
+    
+    /**
+     * @return true if file is in ElasticSearch bulk-API NDJSON format (as outputted
+     *   by SparkDriver with spark.wikitrends.outputFormat=bulk)
+     */
+    private static boolean isBulkFormat(String absoluteFilePath) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(
+                Paths.get(absoluteFilePath), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    return line.startsWith(BULK_ACTION_PREFIX);
+                }
+            }
+            return false;
         }
-        System.out.println("** Bulk responses end");
     }
     
     private static Set<String> getFileSet(String directory) {
@@ -136,11 +201,150 @@ public class ElasticSearchLoader {
     
     
     public static boolean isValidJSON(String test) {
-        try {
-            jsonParser.parse(test);
-        } catch (ParseException ex) {
+        return JsonSyntaxChecker.isValid(test);
+    }
+    
+    /**
+     * Reads, validates, and hands off to the bulk indexer the documents of a
+     * single file; each FileLoader is used by only one worker thread, so holds
+     * its own counters.
+     * <p>
+     * Documents are checked by {@link JsonSyntaxChecker}, every document by
+     * default; for trusted input (as outputted by SparkDriver), only one in
+     * every VALIDATION_SAMPLE_INTERVAL_PROPERTY documents is checked, unless
+     * an invalid document is found, after which the rest of the file is
+     * checked in full.
+     */
+    private static class FileLoader {
+        private final ElasticSearchBulkIndexer.Batch batch;
+        private final String absoluteFilePath;
+        private final int validationSampleInterval = Boolean.getBoolean(TRUSTED_INPUT_PROPERTY)
+                ? Math.max(1, Integer.getInteger(VALIDATION_SAMPLE_INTERVAL_PROPERTY, 1000)) : 1;
+        private boolean sampledValidation = validationSampleInterval > 1;
+        private final long startNanos = System.nanoTime();
+        private long lineCounter = 0;
+        private long docCounter = 0;
+        private long invalidDocCounter = 0;
+        
+        FileLoader(ElasticSearchBulkIndexer.Batch batch, String absoluteFilePath) {
+            this.batch = batch;
+            this.absoluteFilePath = absoluteFilePath;
+        }
+        
+        void load() throws IOException, InterruptedException {
+            try {
+                if (isBulkFormat(absoluteFilePath)) {
+                    loadBulkFile();
+                } else {
+                    loadJsonFile();
+                }
+            } catch (IOException | RuntimeException ex) {
+                // documents read before the failure are still sent (not dropped with the batch)
+                batch.flush();
+                throw ex;
+            }
+            batch.flush();
+        }
+        
+        private void loadJsonFile() throws IOException, InterruptedException {
+            try (BufferedReader reader = Files.newBufferedReader(
+                    Paths.get(absoluteFilePath), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    loadJsonObject(line);
+                }
+            }
+        }
+        
+        /**
+         * Passes the (action, document) line pairs of a bulk-format file to the
+         * bulk indexer as-is (other than any pair found to be invalid).
+         */
+        private void loadBulkFile() throws IOException, InterruptedException {
+            try (BufferedReader reader = Files.newBufferedReader(
+                    Paths.get(absoluteFilePath), StandardCharsets.UTF_8)) {
+                String actionLine = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ++lineCounter;
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (actionLine == null) {
+                        actionLine = line;
+                    } else {
+                        if (isValid(actionLine, line, 0, line.length())) {
+                            batch.addPair(actionLine, line);
+                        }
+                        actionLine = null;
+                    }
+                }
+                if (actionLine != null) {
+                    System.out.println("**** Incomplete (action, document) pair at end of input file: "
+                            + absoluteFilePath);
+                }
+            }
+        }
+        
+        private void loadJsonObject(String line) throws InterruptedException {
+            ++lineCounter;
+            if (line.isEmpty()) {
+                return;
+            }
+            int firstCommaPosition = line.indexOf(','); // 9--daily, 7--monthly, 5--yearly
+            // a line with no document after its ID is invalid, whether or not
+            //   it would otherwise be sampled for checking
+            if (firstCommaPosition <= 0 || firstCommaPosition + 1 >= line.length() - 1) {
+                countInvalid();
+                return;
+            }
+            if (isValid(null, line, firstCommaPosition + 1, line.length() - 1)) {
+                batch.add(line.substring(1, firstCommaPosition),
+                        line.substring(firstCommaPosition + 1, line.length() - 1));
+            }
+        }
+        
+        /**
+         * Checks (or, in sampled validation, may skip the checking of) the
+         * document from start to end of the line (and its bulk action line, if
+         * any), and counts the document as valid or invalid.
+         */
+        private boolean isValid(String actionLine, String line, int start, int end) {
+            if ((sampledValidation && docCounter % validationSampleInterval != 0)
+                    || ((actionLine == null
+                            || JsonSyntaxChecker.isValidObject(actionLine, 0, actionLine.length()))
+                        && end > start && JsonSyntaxChecker.isValidObject(line, start, end))) {
+                ++docCounter;
+                return true;
+            }
+            countInvalid();
             return false;
         }
-        return true;
-    }    
+        
+        /**
+         * Counts a document as invalid, and ends any sampled validation of the file.
+         */
+        private void countInvalid() {
+            ++invalidDocCounter;
+            System.out.println("**** Invalid JSON encountered in input file: "
+                    + absoluteFilePath + " line: " + lineCounter);
+            if (sampledValidation) {
+                sampledValidation = false;
+                System.out.println("**** Trusted input file contains invalid JSON; "
+                        + "validating the rest of the file in full: " + absoluteFilePath);
+            }
+        }
+        
+        /**
+         * Prints a single line of progress, e.g.:
+         * "** File 3/16 loaded: /import/part-00002 -- 450 documents (0 invalid), 2.1 s, 214.3 docs/s"
+         */
+        void report(int completedFiles, int totalFiles) {
+            double elapsedSeconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+            System.out.println(String.format(
+                    "** File %d/%d loaded: %s -- %d documents (%d invalid), %.1f s, %.1f docs/s",
+                    completedFiles, totalFiles, absoluteFilePath, docCounter, invalidDocCounter,
+                    elapsedSeconds, docCounter / elapsedSeconds));
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import org.apache.http.HttpHost;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.function.VoidFunction;
+import org.elasticsearch.client.RestClient;
+import scala.Tuple2;
+
+/**
+ * Indexes (docId, json) tuples into ElasticSearch directly from the executors,
+ * via foreachPartition, as an alternative to the HDFS -> zipForES -> scp ->
+ * loadES sequence.
+ * <p>
+ * Each executor JVM holds one pooled RestClient per set of ElasticSearch nodes,
+ * shared by all of its tasks, and a JVM-wide semaphore bounds the count of
+ * bulk requests in flight from the executor. Requests are sent by an
+ * {@link ElasticSearchBulkIndexer}, so documents rejected for lack of capacity
+ * are resent just as by loadES, with jittered exponential backoff, up to a
+ * maximum count of retries; if any document still fails, the task fails
+ * (which Spark then retries -- indexing by _id is idempotent).
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchSink implements VoidFunction<Iterator<Tuple2<String, String>>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // setting of the nodes conf key enables the sink, e.g. "es1:9200,es2:9200"
+    public static final String NODES_CONF_KEY = "spark.wikitrends.es.nodes";
+    public static final String INDEX_CONF_KEY = "spark.wikitrends.es.index";
+    public static final String TYPE_CONF_KEY = "spark.wikitrends.es.type";
+    public static final String MAX_IN_FLIGHT_CONF_KEY = "spark.wikitrends.es.maxInFlight";
+    public static final String BULK_BYTES_CONF_KEY = "spark.wikitrends.es.bulkBytes";
+    public static final String MAX_RETRIES_CONF_KEY = "spark.wikitrends.es.maxRetries";
+
+    // per-executor resources, keyed by nodes setting
+    private static final Map<String, RestClient> CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, Semaphore> IN_FLIGHT_PERMITS = new ConcurrentHashMap<>();
+
+    private final String nodes;
+    private final String endpoint;
+    private final int maxInFlight;
+    private final int bulkBytes;
+    private final int maxRetries;
+
+    public static boolean isConfigured(SparkConf conf) {
+        return !conf.get(NODES_CONF_KEY, "").trim().isEmpty();
+    }
+
+    /**
+     * @param conf SparkConf bearing the spark.wikitrends.es.* settings
+     */
+    public ElasticSearchSink(SparkConf conf) {
+        nodes = conf.get(NODES_CONF_KEY).trim();
+        endpoint = "/" + conf.get(INDEX_CONF_KEY, "popular-pages")
+                + "/" + conf.get(TYPE_CONF_KEY, "interval_type") + "/_bulk";
+        maxInFlight = conf.getInt(MAX_IN_FLIGHT_CONF_KEY, 2);
+        bulkBytes = conf.getInt(BULK_BYTES_CONF_KEY, 5 << 20);
+        maxRetries = conf.getInt(MAX_RETRIES_CONF_KEY, 5);
+    }
+
+    @Override
+    public void call(Iterator<Tuple2<String, String>> docIdsAndJson) throws Exception {
+        // requests are bounded by bytes alone; documents that fail are not
+        //   dead-lettered (on the executor), but fail the task
+        ElasticSearchBulkIndexer indexer = new ElasticSearchBulkIndexer(getClient(), endpoint,
+                Integer.MAX_VALUE, bulkBytes,
+                IN_FLIGHT_PERMITS.computeIfAbsent(nodes, key -> new Semaphore(maxInFlight)),
+                maxInFlight, maxRetries, null);
+        try {
+            ElasticSearchBulkIndexer.Batch batch = indexer.newBatch();
+            while (docIdsAndJson.hasNext()) {
+                Tuple2<String, String> docIdAndJson = docIdsAndJson.next();
+                batch.add(docIdAndJson._1(), docIdAndJson._2());
+            }
+            batch.flush();
+        } finally {
+            indexer.close();
+        }
+        if (indexer.getFailedDocs() > 0) {
+            throw new IOException(indexer.getFailedDocs() + " documents failed to be indexed "
+                    + "into ElasticSearch; failed attempts by status: "
+                    + indexer.getFailureCountsByStatus());
+        }
+    }
+
+    private RestClient getClient() {
+        return CLIENTS.computeIfAbsent(nodes, key -> {
+            String[] hostsAndPorts = key.split(",");
+            HttpHost[] hosts = new HttpHost[hostsAndPorts.length];
+            for (int i = 0; i < hostsAndPorts.length; i++) {
+                hosts[i] = HttpHost.create(hostsAndPorts[i].trim());
+            }
+            RestClient client = RestClient.builder(hosts)
+                    .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                            .setMaxConnPerRoute(maxInFlight)
+                            .setMaxConnTotal(maxInFlight * hosts.length)
+                            // daemon I/O threads never hold an exiting JVM open
+                            .setThreadFactory(runnable -> {
+                                Thread thread = new Thread(runnable, "es-sink-io");
+                                thread.setDaemon(true);
+                                return thread;
+                            }))
+                    .build();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    client.close();
+                } catch (IOException ex) { }
+            }));
+            return client;
+        });
+    }
+}
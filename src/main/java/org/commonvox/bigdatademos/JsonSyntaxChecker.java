@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+/**
+ * Checks the syntax of JSON text (per RFC 8259) in a single pass over its
+ * chars, without building any object tree and without allocating anything;
+ * being stateless, it is safe for use by any number of threads at once.
+ * <p>
+ * Each private method checks the construct starting at a given position, and
+ * returns the position following it, or -1 if the construct is malformed.
+ *
+ * @author Daniel Vimont
+ */
+public final class JsonSyntaxChecker {
+
+    // deeper nesting is rejected (rather than risking stack overflow)
+    private static final int MAX_DEPTH = 256;
+    private static final int MALFORMED = -1;
+
+    private JsonSyntaxChecker() { }
+
+    /**
+     * @param json JSON text
+     * @return true if the text is a single well-formed JSON value (with optional
+     *   surrounding whitespace)
+     */
+    public static boolean isValid(CharSequence json) {
+        return isValid(json, 0, json.length());
+    }
+
+    /**
+     * @param text text containing JSON
+     * @param start position of the first char of the JSON
+     * @param end position following the last char of the JSON
+     * @return true if the chars from start to end are a single well-formed JSON
+     *   value (with optional surrounding whitespace)
+     */
+    public static boolean isValid(CharSequence text, int start, int end) {
+        int position = value(text, skipWhitespace(text, start, end), end, 0);
+        return position != MALFORMED && skipWhitespace(text, position, end) == end;
+    }
+
+    /**
+     * @return true if the chars from start to end are a single well-formed JSON
+     *   object (e.g., an ElasticSearch document)
+     */
+    public static boolean isValidObject(CharSequence text, int start, int end) {
+        int position = skipWhitespace(text, start, end);
+        return position < end && text.charAt(position) == '{' && isValid(text, position, end);
+    }
+
+    private static int value(CharSequence text, int position, int end, int depth) {
+        if (position == MALFORMED || position >= end) {
+            return MALFORMED;
+        }
+        switch (text.charAt(position)) {
+            case '{':
+                return object(text, position + 1, end, depth + 1);
+            case '[':
+                return array(text, position + 1, end, depth + 1);
+            case '"':
+                return string(text, position + 1, end);
+            case 't':
+                return literal(text, position, end, "true");
+            case 'f':
+                return literal(text, position, end, "false");
+            case 'n':
+                return literal(text, position, end, "null");
+            default:
+                return number(text, position, end);
+        }
+    }
+
+    private static int object(CharSequence text, int position, int end, int depth) {
+        if (depth > MAX_DEPTH) {
+            return MALFORMED;
+        }
+        position = skipWhitespace(text, position, end);
+        if (position < end && text.charAt(position) == '}') {
+            return position + 1;
+        }
+        while (true) {
+            if (position >= end || text.charAt(position) != '"') {
+                return MALFORMED;
+            }
+            position = skipWhitespace(text, string(text, position + 1, end), end);
+            if (position == MALFORMED || position >= end || text.charAt(position) != ':') {
+                return MALFORMED;
+            }
+            position = value(text, skipWhitespace(text, position + 1, end), end, depth);
+            position = skipWhitespace(text, position, end);
+            if (position == MALFORMED || position >= end) {
+                return MALFORMED;
+            }
+            char c = text.charAt(position);
+            if (c == '}') {
+                return position + 1;
+            }
+            if (c != ',') {
+                return MALFORMED;
+            }
+            position = skipWhitespace(text, position + 1, end);
+        }
+    }
+
+    private static int array(CharSequence text, int position, int end, int depth) {
+        if (depth > MAX_DEPTH) {
+            return MALFORMED;
+        }
+        position = skipWhitespace(text, position, end);
+        if (position < end && text.charAt(position) == ']') {
+            return position + 1;
+        }
+        while (true) {
+            position = skipWhitespace(text, value(text, position, end, depth), end);
+            if (position == MALFORMED || position >= end) {
+                return MALFORMED;
+            }
+            char c = text.charAt(position);
+            if (c == ']') {
+                return position + 1;
+            }
+            if (c != ',') {
+                return MALFORMED;
+            }
+            position = skipWhitespace(text, position + 1, end);
+        }
+    }
+
+    /**
+     * @param position position following the opening quote
+     */
+    private static int string(CharSequence text, int position, int end) {
+        while (position < end) {
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return position;
+            }
+            if (c < 0x20) {
+                return MALFORMED;
+            }
+            if (c == '\\') {
+                if (position >= end) {
+                    return MALFORMED;
+                }
+                switch (text.charAt(position++)) {
+                    case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+                        break;
+                    case 'u':
+                        for (int i = 0; i < 4; i++, position++) {
+                            if (position >= end || !isHexDigit(text.charAt(position))) {
+                                return MALFORMED;
+                            }
+                        }
+                        break;
+                    default:
+                        return MALFORMED;
+                }
+            }
+        }
+        return MALFORMED;
+    }
+
+    private static int number(CharSequence text, int position, int end) {
+        if (position < end && text.charAt(position) == '-') {
+            position++;
+        }
+        if (position < end && text.charAt(position) == '0') {
+            position++;
+        } else {
+            int digitsEnd = digits(text, position, end);
+            if (digitsEnd == position) {
+                return MALFORMED;
+            }
+            position = digitsEnd;
+        }
+        if (position < end && text.charAt(position) == '.') {
+            int digitsEnd = digits(text, position + 1, end);
+            if (digitsEnd == position + 1) {
+                return MALFORMED;
+            }
+            position = digitsEnd;
+        }
+        if (position < end && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+            position++;
+            if (position < end && (text.charAt(position) == '+' || text.charAt(position) == '-')) {
+                position++;
+            }
+            int digitsEnd = digits(text, position, end);
+            if (digitsEnd == position) {
+                return MALFORMED;
+            }
+            position = digitsEnd;
+        }
+        return position;
+    }
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static int digits(CharSequence text, int position, int end) {
+        while (position < end && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int literal(CharSequence text, int position, int end, String literal) {
+        if (end - position < literal.length()) {
+            return MALFORMED;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (text.charAt(position + i) != literal.charAt(i)) {
+                return MALFORMED;
+            }
+        }
+        return position + literal.length();
+    }
+
+    private static int skipWhitespace(CharSequence text, int position, int end) {
+        if (position == MALFORMED) {
+            return MALFORMED;
+        }
+        while (position < end) {
+            char c = text.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+}
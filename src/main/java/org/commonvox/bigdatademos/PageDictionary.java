@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import scala.Tuple2;
+
+/**
+ * Dictionary encoding of pageIds [domain code + " " + webpage extension]:
+ * each distinct pageId is assigned an integer index, so that all stages
+ * following the daily aggregation work on (interval, pageIndex) packed into a
+ * single long, rather than on pageIds. PageIds are rehydrated (via {@link #lookup})
+ * only for the most popular pages of each interval.
+ * <p>
+ * The daily aggregation is partitioned by pageId alone ({@link PagePartitioner}),
+ * so that every occurrence of a given pageId is found in the same partition; the
+ * dictionary is thus built and applied within partitions, without any further
+ * shuffle of pageIds. The pageIndexes of partition p are assigned as
+ * p, p + n, p + 2n, ... (where n is the number of partitions), so that the
+ * partition of any packed key can be derived from its pageIndex: encoded keys
+ * of every interval (day, month, year) thus remain in the partition of their
+ * page, and the monthly and yearly rollups require no shuffle.
+ *
+ * @author Daniel Vimont
+ */
+public class PageDictionary {
+
+    public static long packKey(int interval, int pageIndex) {
+        return ((long) interval << 32) | (pageIndex & 0xFFFFFFFFL);
+    }
+
+    public static int intervalOf(long packedKey) {
+        return (int) (packedKey >>> 32);
+    }
+
+    public static int pageIndexOf(long packedKey) {
+        return (int) packedKey;
+    }
+
+    /**
+     * Partitions daily keys ({@link PageViewKey}) by the hash of the pageId only,
+     * and encoded keys (packed Long) by pageIndex, such that both forms of the
+     * key of a given page are assigned to the same partition.
+     */
+    static class PagePartitioner extends Partitioner {
+        private static final long serialVersionUID = 1L;
+        private final int numPartitions;
+
+        PagePartitioner(int numPartitions) {
+            this.numPartitions = numPartitions;
+        }
+
+        @Override
+        public int numPartitions() {
+            return numPartitions;
+        }
+
+        @Override
+        public int getPartition(Object key) {
+            if (key instanceof Long) {
+                return pageIndexOf((Long) key) % numPartitions;
+            }
+            return Math.floorMod(((PageViewKey) key).pageHashCode(), numPartitions);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PagePartitioner
+                    && ((PagePartitioner) other).numPartitions == numPartitions;
+        }
+
+        @Override
+        public int hashCode() {
+            return numPartitions;
+        }
+    }
+
+    /**
+     * @param pageViewsDaily daily views, partitioned by {@link PagePartitioner}
+     * @return (pageId key, pageIndex) for every distinct pageId, partitioned
+     *   as pageViewsDaily
+     */
+    public static JavaPairRDD<PageViewKey, Long> build(
+            JavaPairRDD<PageViewKey, Long> pageViewsDaily) {
+        int numPartitions = pageViewsDaily.getNumPartitions();
+        return JavaPairRDD.fromJavaRDD(pageViewsDaily
+                .mapPartitionsWithIndex((partitionIndex, dailyViews) -> {
+                    List<PageViewKey> pageKeys = sortedPageKeys(dailyViews);
+                    List<Tuple2<PageViewKey, Long>> entries = new ArrayList<>(pageKeys.size());
+                    for (int position = 0; position < pageKeys.size(); position++) {
+                        entries.add(new Tuple2<>(pageKeys.get(position), (long) toPageIndex(
+                                partitionIndex, position, numPartitions)));
+                    }
+                    return entries.iterator();
+                }, true));
+    }
+
+    /**
+     * @param pageViewsDaily daily views, partitioned by {@link PagePartitioner}
+     * @return daily views keyed by (yyyymmdd, pageIndex) packed into a long,
+     *   partitioned as pageViewsDaily (i.e., by {@link PagePartitioner})
+     */
+    public static JavaPairRDD<Long, Long> encode(JavaPairRDD<PageViewKey, Long> pageViewsDaily) {
+        int numPartitions = pageViewsDaily.getNumPartitions();
+        return JavaPairRDD.fromJavaRDD(pageViewsDaily
+                .mapPartitionsWithIndex((partitionIndex, dailyViewsIterator) -> {
+                    // the partition's views are held (by reference) while its
+                    //   dictionary is derived, exactly as in build
+                    List<Tuple2<PageViewKey, Long>> dailyViews = new ArrayList<>();
+                    dailyViewsIterator.forEachRemaining(dailyViews::add);
+                    List<PageViewKey> pageKeys = sortedPageKeys(dailyViews.iterator());
+                    Map<PageViewKey, Integer> localDictionary = new HashMap<>();
+                    for (int position = 0; position < pageKeys.size(); position++) {
+                        localDictionary.put(pageKeys.get(position),
+                                toPageIndex(partitionIndex, position, numPartitions));
+                    }
+                    List<Tuple2<Long, Long>> encodedViews = new ArrayList<>(dailyViews.size());
+                    for (Tuple2<PageViewKey, Long> dailyView : dailyViews) {
+                        PageViewKey dailyKey = dailyView._1();
+                        int pageIndex = localDictionary.get(
+                                dailyKey.withInterval(PageViewKey.NO_INTERVAL));
+                        encodedViews.add(new Tuple2<>(
+                                packKey(dailyKey.getInterval(), pageIndex), dailyView._2()));
+                    }
+                    return encodedViews.iterator();
+                }, true));
+    }
+
+    /**
+     * @return distinct page-only keys, sorted so that any recomputation of a
+     *   partition yields the same pageIndexes
+     */
+    private static List<PageViewKey> sortedPageKeys(Iterator<Tuple2<PageViewKey, Long>> dailyViews) {
+        Set<PageViewKey> pageKeySet = new HashSet<>();
+        while (dailyViews.hasNext()) {
+            pageKeySet.add(dailyViews.next()._1().withInterval(PageViewKey.NO_INTERVAL));
+        }
+        List<PageViewKey> pageKeys = new ArrayList<>(pageKeySet);
+        Collections.sort(pageKeys);
+        return pageKeys;
+    }
+
+    private static int toPageIndex(int partitionIndex, int position, int numPartitions) {
+        long pageIndex = (long) position * numPartitions + partitionIndex;
+        if (pageIndex > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Count of distinct pages exceeds capacity "
+                    + "of int pageIndex (in partition " + partitionIndex + ")");
+        }
+        return (int) pageIndex;
+    }
+
+    /**
+     * Rehydrates the passed pageIndexes into pageId keys.
+     *
+     * @param dictionary the dictionary
+     * @param pageIndexes pageIndexes to be looked up
+     * @return Map of pageIndex to pageId key
+     */
+    public static Map<Integer, PageViewKey> lookup(
+            JavaPairRDD<PageViewKey, Long> dictionary, List<Integer> pageIndexes) {
+        JavaSparkContext sc = JavaSparkContext.fromSparkContext(dictionary.context());
+        Set<Long> pageIndexSet = new HashSet<>();
+        for (Integer pageIndex : pageIndexes) {
+            pageIndexSet.add(pageIndex.longValue());
+        }
+        Broadcast<Set<Long>> broadcastPageIndexes = sc.broadcast(pageIndexSet);
+        List<Tuple2<PageViewKey, Long>> entries = dictionary
+                .filter(entry -> broadcastPageIndexes.value().contains(entry._2()))
+                .collect();
+        broadcastPageIndexes.destroy();
+        Map<Integer, PageViewKey> pageKeysByIndex = new HashMap<>();
+        for (Tuple2<PageViewKey, Long> entry : entries) {
+            pageKeysByIndex.put(entry._2().intValue(), entry._1());
+        }
+        return pageKeysByIndex;
+    }
+}
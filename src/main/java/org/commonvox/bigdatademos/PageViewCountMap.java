@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) hash map of (day, page) to count of views,
+ * holding only primitives: page keys are copied into a single growable byte
+ * arena, and each slot is described by parallel int arrays. No objects are
+ * created per entry, so summing millions of hourly records within a partition
+ * puts essentially no load on the garbage collector.
+ * <p>
+ * Intended use is one instance per partition (NOT thread-safe): {@link #add}
+ * until {@link #estimatedBytes} reaches the memory budget, then iterate over
+ * the entries with {@link #advance} and {@link #clear} for reuse.
+ *
+ * @author Daniel Vimont
+ */
+public class PageViewCountMap {
+
+    private static final int INITIAL_CAPACITY = 1 << 16; // must be power of 2
+    private static final int INITIAL_ARENA_SIZE = 1 << 20;
+    private static final int BYTES_PER_SLOT = 4 * Integer.BYTES + Long.BYTES;
+    private static final int EMPTY = -1;
+
+    private int[] slotOffsets;  // offset of key within arena; EMPTY if slot unused
+    private int[] slotLengths;
+    private int[] slotHashes;
+    private int[] slotDays;
+    private long[] slotCounts;
+    private int mask;
+    private int size;
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+    private int arenaSize;
+    private int cursor = -1;
+
+    public PageViewCountMap() {
+        allocateSlots(INITIAL_CAPACITY);
+    }
+
+    private void allocateSlots(int capacity) {
+        slotOffsets = new int[capacity];
+        Arrays.fill(slotOffsets, EMPTY);
+        slotLengths = new int[capacity];
+        slotHashes = new int[capacity];
+        slotDays = new int[capacity];
+        slotCounts = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds count of views to the entry for the passed (day, page), creating
+     * the entry if necessary.
+     *
+     * @param day interval of the entry, e.g. yyyymmdd
+     * @param bytes buffer containing the page key
+     * @param offset offset of page key within buffer
+     * @param length length of page key
+     * @param countViews count to be added
+     */
+    public void add(int day, byte[] bytes, int offset, int length, long countViews) {
+        int hash = hash(day, bytes, offset, length);
+        int slot = hash & mask;
+        while (slotOffsets[slot] != EMPTY) {
+            if (slotHashes[slot] == hash && slotDays[slot] == day
+                    && keyEquals(slot, bytes, offset, length)) {
+                slotCounts[slot] += countViews;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slotOffsets[slot] = appendToArena(bytes, offset, length);
+        slotLengths[slot] = length;
+        slotHashes[slot] = hash;
+        slotDays[slot] = day;
+        slotCounts[slot] = countViews;
+        // load factor kept at or below 0.5
+        if (++size > (mask + 1) >> 1) {
+            rehash();
+        }
+    }
+
+    private static int hash(int day, byte[] bytes, int offset, int length) {
+        int hash = day;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // spread high-order bits downward, since slot is taken from low-order bits
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean keyEquals(int slot, byte[] bytes, int offset, int length) {
+        if (slotLengths[slot] != length) {
+            return false;
+        }
+        int arenaOffset = slotOffsets[slot];
+        for (int i = 0; i < length; i++) {
+            if (arena[arenaOffset + i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int appendToArena(byte[] bytes, int offset, int length) {
+        if (arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+        }
+        System.arraycopy(bytes, offset, arena, arenaSize, length);
+        int keyOffset = arenaSize;
+        arenaSize += length;
+        return keyOffset;
+    }
+
+    private void rehash() {
+        int[] oldOffsets = slotOffsets;
+        int[] oldLengths = slotLengths;
+        int[] oldHashes = slotHashes;
+        int[] oldDays = slotDays;
+        long[] oldCounts = slotCounts;
+        allocateSlots(oldOffsets.length * 2);
+        for (int oldSlot = 0; oldSlot < oldOffsets.length; oldSlot++) {
+            if (oldOffsets[oldSlot] == EMPTY) {
+                continue;
+            }
+            int slot = oldHashes[oldSlot] & mask;
+            while (slotOffsets[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slotOffsets[slot] = oldOffsets[oldSlot];
+            slotLengths[slot] = oldLengths[oldSlot];
+            slotHashes[slot] = oldHashes[oldSlot];
+            slotDays[slot] = oldDays[oldSlot];
+            slotCounts[slot] = oldCounts[oldSlot];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return approximate count of bytes taken by the current entries of this
+     *   map (not its allocated capacity, which {@link #clear} retains); each
+     *   entry accounts for two slots, the load factor being at most 0.5
+     */
+    public long estimatedBytes() {
+        return (long) arenaSize + (long) size * 2 * BYTES_PER_SLOT;
+    }
+
+    /**
+     * Positions the cursor at the next entry of the map.
+     *
+     * @return false if there are no further entries
+     */
+    public boolean advance() {
+        while (++cursor <= mask) {
+            if (slotOffsets[cursor] != EMPTY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDay() {
+        return slotDays[cursor];
+    }
+
+    public long getCountViews() {
+        return slotCounts[cursor];
+    }
+
+    /**
+     * @return the arena, within which the key of the current entry is found
+     *   at {@link #getKeyOffset} for {@link #getKeyLength} bytes
+     */
+    public byte[] getKeyBytes() {
+        return arena;
+    }
+
+    public int getKeyOffset() {
+        return slotOffsets[cursor];
+    }
+
+    public int getKeyLength() {
+        return slotLengths[cursor];
+    }
+
+    /**
+     * Empties the map, retaining its allocated storage for reuse.
+     */
+    public void clear() {
+        Arrays.fill(slotOffsets, EMPTY);
+        size = 0;
+        arenaSize = 0;
+        cursor = -1;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact composite key of an interval (e.g. yyyymmdd as an int) and a webpage,
+ * the latter held as the UTF-8 bytes of its pageId [domain code + " " + webpage
+ * extension], exactly as they appear in the raw data. This replaces keys
+ * formerly concatenated into Strings (and subsequently re-parsed via substring
+ * and split).
+ * <p>
+ * Instances are immutable; the hash is computed once. Equality and ordering are
+ * by interval, then by pageId bytes. Serialization is via the registered
+ * {@link KryoSerializer}.
+ *
+ * @author Daniel Vimont
+ */
+public final class PageViewKey implements Comparable<PageViewKey>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** interval value of keys that identify a webpage only (e.g., in the page dictionary) */
+    public static final int NO_INTERVAL = 0;
+    private static final byte SPACE = ' ';
+
+    private final int interval;
+    private final byte[] pageIdBytes;
+    private final int pageHash;
+
+    /**
+     * @param interval interval, e.g. yyyymmdd, or NO_INTERVAL
+     * @param pageIdBytes UTF-8 bytes of [domain code + " " + webpage extension];
+     *   NOT copied, so must not subsequently be modified
+     */
+    public PageViewKey(int interval, byte[] pageIdBytes) {
+        this.interval = interval;
+        this.pageIdBytes = pageIdBytes;
+        this.pageHash = Arrays.hashCode(pageIdBytes);
+    }
+
+    private PageViewKey(int interval, byte[] pageIdBytes, int pageHash) {
+        this.interval = interval;
+        this.pageIdBytes = pageIdBytes;
+        this.pageHash = pageHash;
+    }
+
+    /**
+     * @param newInterval interval of the new key
+     * @return key of the same webpage (sharing the pageId bytes) for another interval
+     */
+    public PageViewKey withInterval(int newInterval) {
+        return new PageViewKey(newInterval, pageIdBytes, pageHash);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return hash of the webpage only, irrespective of interval
+     */
+    public int pageHashCode() {
+        return pageHash;
+    }
+
+    public String getPageId() {
+        return new String(pageIdBytes, StandardCharsets.UTF_8);
+    }
+
+    public String getDomainCode() {
+        return new String(pageIdBytes, 0, domainCodeLength(), StandardCharsets.UTF_8);
+    }
+
+    public String getPageTitle() {
+        int pageTitleStart = domainCodeLength() + 1;
+        return new String(pageIdBytes, pageTitleStart, pageIdBytes.length - pageTitleStart,
+                StandardCharsets.UTF_8);
+    }
+
+    private int domainCodeLength() {
+        int length = 0;
+        while (length < pageIdBytes.length && pageIdBytes[length] != SPACE) {
+            length++;
+        }
+        return length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * interval + pageHash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof PageViewKey)) {
+            return false;
+        }
+        PageViewKey otherKey = (PageViewKey) other;
+        return interval == otherKey.interval && pageHash == otherKey.pageHash
+                && Arrays.equals(pageIdBytes, otherKey.pageIdBytes);
+    }
+
+    @Override
+    public int compareTo(PageViewKey otherKey) {
+        if (interval != otherKey.interval) {
+            return Integer.compare(interval, otherKey.interval);
+        }
+        int commonLength = Math.min(pageIdBytes.length, otherKey.pageIdBytes.length);
+        for (int i = 0; i < commonLength; i++) {
+            if (pageIdBytes[i] != otherKey.pageIdBytes[i]) {
+                // unsigned comparison preserves UTF-8 (i.e., code point) ordering
+                return Integer.compare(pageIdBytes[i] & 0xFF, otherKey.pageIdBytes[i] & 0xFF);
+            }
+        }
+        return Integer.compare(pageIdBytes.length, otherKey.pageIdBytes.length);
+    }
+
+    @Override
+    public String toString() {
+        return interval + getPageId();
+    }
+
+    /**
+     * Writes interval and pageId length as variable-length ints, followed by the raw bytes.
+     */
+    public static class KryoSerializer extends Serializer<PageViewKey> {
+
+        public KryoSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, PageViewKey key) {
+            output.writeInt(key.interval, true);
+            output.writeInt(key.pageIdBytes.length, true);
+            output.writeBytes(key.pageIdBytes);
+        }
+
+        @Override
+        public PageViewKey read(Kryo kryo, Input input, Class<PageViewKey> type) {
+            int interval = input.readInt(true);
+            return new PageViewKey(interval, input.readBytes(input.readInt(true)));
+        }
+    }
+}
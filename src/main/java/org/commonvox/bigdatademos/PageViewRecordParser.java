@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Single-pass parser for raw hourly pageview records, working directly upon
+ * the bytes of a Hadoop {@link Text} (no intermediate String, no split, no regex).
+ * <p>
+ * Raw data entry format is space-delimited:
+ *   [domain code] + [webpage extension] + [pageviews] + [total response size]
+ * <p>
+ * The validity rules are those of {@link SparkDriver#rawDataEntryIsValid}; upon a
+ * successful {@link #parse} the positions of the fields are retained, so that
+ * objects need only be constructed for records that survive the filter.
+ * Instances are reusable but NOT thread-safe (one per partition).
+ *
+ * @author Daniel Vimont
+ */
+public class PageViewRecordParser {
+
+    private static final byte SPACE = ' ';
+    private static final byte TAB = '\t';
+    private static final byte HYPHEN = '-';
+    public static final String DEFAULT_DOMAIN_CODE = "en";
+
+    enum Rejection { NONE, OTHER_DOMAIN, HYPHEN_PAGE, CONTAINS_TABS, FIELD_COUNT, NONINTEGER_COUNT_OF_VIEWS }
+
+    private final byte[][] domainCodes;
+    private byte[] bytes;
+    private int length;
+    private int pageTitleStart;
+    private int pageTitleEnd;
+    private int countViewsStart;
+    private int countViewsEnd;
+    private long countViews;
+    private Rejection rejection = Rejection.NONE;
+
+    public PageViewRecordParser() {
+        this(DEFAULT_DOMAIN_CODE);
+    }
+
+    /**
+     * @param domainCodes Wikimedia domain codes of interest (e.g., "en", "de")
+     */
+    public PageViewRecordParser(String... domainCodes) {
+        this.domainCodes = toDomainCodeBytes(domainCodes);
+    }
+
+    static byte[][] toDomainCodeBytes(String... domainCodes) {
+        byte[][] domainCodeBytes = new byte[domainCodes.length][];
+        for (int i = 0; i < domainCodes.length; i++) {
+            domainCodeBytes[i] = domainCodes[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return domainCodeBytes;
+    }
+
+    public boolean parse(Text rawDataEntry) {
+        return parse(rawDataEntry.getBytes(), rawDataEntry.getLength());
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of raw data entry (possibly a reused buffer)
+     * @param length count of valid bytes in the buffer
+     * @return true if the entry is valid and of one of the domains of interest
+     */
+    public boolean parse(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+
+        // 2017-09-20 decided to initially work only with English Wikimedia pages
+        // 2017-09-24 -- added space after "en" for only wikiPEDIA
+        int domainCodeLength = matchDomainCode(bytes, length, domainCodes);
+        if (domainCodeLength < 0) {
+            return reject(Rejection.OTHER_DOMAIN);
+        }
+        pageTitleStart = domainCodeLength + 1;
+        // Curious page with just hyphen as URL extension should be filtered out!
+        if (length > pageTitleStart + 1 && bytes[pageTitleStart] == HYPHEN
+                && bytes[pageTitleStart + 1] == SPACE) {
+            return reject(Rejection.HYPHEN_PAGE);
+        }
+
+        // one pass to locate the remaining delimiters; trailing spaces are
+        //   tolerated, as they were by String#split
+        int fieldCount = 2;
+        int lastNonSpace = -1;
+        pageTitleEnd = -1;
+        countViewsEnd = -1;
+        for (int i = pageTitleStart; i < length; i++) {
+            byte b = bytes[i];
+            if (b == TAB) {
+                return reject(Rejection.CONTAINS_TABS);
+            }
+            if (b == SPACE) {
+                if (fieldCount == 2) {
+                    pageTitleEnd = i;
+                } else if (fieldCount == 3) {
+                    countViewsEnd = i;
+                }
+                fieldCount++;
+            } else {
+                if (fieldCount > 4) {
+                    // non-space content beyond the fourth field
+                    return reject(Rejection.FIELD_COUNT);
+                }
+                lastNonSpace = i;
+            }
+        }
+        if (fieldCount < 4 || countViewsEnd < 0 || lastNonSpace <= countViewsEnd
+                || pageTitleEnd == pageTitleStart) {
+            return reject(Rejection.FIELD_COUNT);
+        }
+        countViewsStart = pageTitleEnd + 1;
+        if (!parseCountViews()) {
+            return reject(Rejection.NONINTEGER_COUNT_OF_VIEWS);
+        }
+        rejection = Rejection.NONE;
+        return true;
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of raw data entry
+     * @param length count of valid bytes in the buffer
+     * @param domainCodes domain codes of interest
+     * @return length of the matched domain code (which is followed by a space
+     *   in the entry), or -1 if the entry begins with none of the domain codes
+     */
+    static int matchDomainCode(byte[] bytes, int length, byte[][] domainCodes) {
+        for (byte[] domainCode : domainCodes) {
+            if (length <= domainCode.length || bytes[domainCode.length] != SPACE) {
+                continue;
+            }
+            int i = 0;
+            while (i < domainCode.length && bytes[i] == domainCode[i]) {
+                i++;
+            }
+            if (i == domainCode.length) {
+                return domainCode.length;
+            }
+        }
+        return -1;
+    }
+
+    private boolean parseCountViews() {
+        if (countViewsEnd == countViewsStart) {
+            return false;
+        }
+        long value = 0;
+        for (int i = countViewsStart; i < countViewsEnd; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            // reject (rather than silently overflow) absurdly long digit strings
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                return false;
+            }
+            value = value * 10 + digit;
+        }
+        countViews = value;
+        return true;
+    }
+
+    private boolean reject(Rejection rejection) {
+        this.rejection = rejection;
+        return false;
+    }
+
+    public long getCountViews() {
+        return countViews;
+    }
+
+    /**
+     * @param interval interval of the key, e.g. yyyymmdd
+     * @return key of the most recently parsed entry [domain code + " " + webpage extension]
+     */
+    public PageViewKey toPageViewKey(int interval) {
+        return new PageViewKey(interval, Arrays.copyOf(bytes, pageTitleEnd));
+    }
+
+    /**
+     * @return buffer of the most recently parsed entry, which begins with
+     *   its pageId [domain code + " " + webpage extension]
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getPageIdLength() {
+        return pageTitleEnd;
+    }
+
+    Rejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Only invalid entries that were reported by the original String-based
+     * validation are considered reportable (i.e., not those merely outside
+     * of the domain of interest).
+     *
+     * @return true if the most recent rejection should be reported
+     */
+    public boolean rejectionIsReportable() {
+        return rejection == Rejection.CONTAINS_TABS
+                || rejection == Rejection.FIELD_COUNT
+                || rejection == Rejection.NONINTEGER_COUNT_OF_VIEWS;
+    }
+
+    /**
+     * Constructs a String description of the most recent rejection; intended
+     * only for the (rare) reportable rejections.
+     *
+     * @param source description of source of entry (e.g., file name)
+     * @return description of rejection
+     */
+    public String describeRejection(String source) {
+        return "** Encountered invalid entry (" + rejection + ") in " + source
+                + " -- raw data entry: <"
+                + new String(bytes, 0, length, StandardCharsets.UTF_8) + ">";
+    }
+}
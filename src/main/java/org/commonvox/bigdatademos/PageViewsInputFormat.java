@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+/**
+ * InputFormat for Wikimedia hourly pageview files (e.g. pageviews-20160701-110000.gz).
+ * <p>
+ * Lines are dropped at the byte level (as they are decompressed, and before
+ * any tuple is handed to Spark) unless they begin with one of the configured
+ * domain codes. The key of each record is not the position within the file
+ * (as with TextInputFormat), but the hourly timestamp of the file, in the
+ * numeric form yyyymmddhh, as parsed from the file name.
+ * <p>
+ * Optionally, up to {@link #HOURS_PER_SPLIT_CONF_KEY} hourly files of the same
+ * day may be read in a single split (and thus in a single Spark partition),
+ * which permits the counts of each day's pages to be summed within the partition.
+ *
+ * @author Daniel Vimont
+ */
+public class PageViewsInputFormat extends FileInputFormat<LongWritable, Text> {
+
+    public static final String DOMAIN_CODES_CONF_KEY = "wikitrends.pageviews.domain.codes";
+    public static final String HOURS_PER_SPLIT_CONF_KEY = "wikitrends.pageviews.hours.per.split";
+    private static final Pattern PAGEVIEW_FILE_NAME_PATTERN =
+            Pattern.compile("pageviews-(\\d{8})-(\\d{2})\\d{4}.*");
+
+    public static void setDomainCodes(Configuration conf, String... domainCodes) {
+        conf.setStrings(DOMAIN_CODES_CONF_KEY, domainCodes);
+    }
+
+    public static String[] getDomainCodes(Configuration conf) {
+        return conf.getTrimmedStrings(
+                DOMAIN_CODES_CONF_KEY, PageViewRecordParser.DEFAULT_DOMAIN_CODE);
+    }
+
+    public static void setHoursPerSplit(Configuration conf, int hoursPerSplit) {
+        conf.setInt(HOURS_PER_SPLIT_CONF_KEY, hoursPerSplit);
+    }
+
+    /**
+     * @param fileName name of hourly pageview file, e.g. pageviews-20160701-110000.gz
+     * @return hourly timestamp in the form yyyymmddhh, e.g. 2016070111
+     * @throws IOException if file name does not follow Wikimedia naming convention
+     */
+    public static long parseHourlyTimestamp(String fileName) throws IOException {
+        Matcher matcher = PAGEVIEW_FILE_NAME_PATTERN.matcher(fileName);
+        if (!matcher.matches()) {
+            throw new IOException("Name of file <" + fileName
+                    + "> does not conform to pageviews-yyyymmdd-hh0000 naming convention");
+        }
+        return Long.parseLong(matcher.group(1) + matcher.group(2));
+    }
+
+    /**
+     * Unless more than one hour per split is configured, splits are those of
+     * FileInputFormat; otherwise consecutive hourly files of the same day are
+     * grouped into CombineFileSplits.
+     */
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        List<InputSplit> fileSplits = super.getSplits(job);
+        int hoursPerSplit = job.getConfiguration().getInt(HOURS_PER_SPLIT_CONF_KEY, 1);
+        if (hoursPerSplit <= 1) {
+            return fileSplits;
+        }
+        fileSplits.sort(Comparator.comparing(split -> ((FileSplit) split).getPath().getName()));
+        List<InputSplit> groupedSplits = new ArrayList<>();
+        List<FileSplit> group = new ArrayList<>();
+        long groupDay = -1;
+        for (InputSplit split : fileSplits) {
+            FileSplit fileSplit = (FileSplit) split;
+            long day = parseHourlyTimestamp(fileSplit.getPath().getName()) / 100;
+            if (day != groupDay || group.size() >= hoursPerSplit) {
+                addGroupedSplit(groupedSplits, group);
+                group.clear();
+                groupDay = day;
+            }
+            group.add(fileSplit);
+        }
+        addGroupedSplit(groupedSplits, group);
+        return groupedSplits;
+    }
+
+    private static void addGroupedSplit(List<InputSplit> groupedSplits, List<FileSplit> group)
+            throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        Path[] paths = new Path[group.size()];
+        long[] starts = new long[group.size()];
+        long[] lengths = new long[group.size()];
+        for (int i = 0; i < group.size(); i++) {
+            paths[i] = group.get(i).getPath();
+            starts[i] = group.get(i).getStart();
+            lengths[i] = group.get(i).getLength();
+        }
+        // locality of first file of group is (arbitrarily) taken for the group
+        groupedSplits.add(new CombineFileSplit(
+                paths, starts, lengths, group.get(0).getLocations()));
+    }
+
+    @Override
+    public RecordReader<LongWritable, Text> createRecordReader(
+            InputSplit split, TaskAttemptContext context) {
+        if (split instanceof CombineFileSplit) {
+            return new GroupedPageViewsRecordReader();
+        }
+        return new PageViewsRecordReader();
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        final CompressionCodec codec =
+                new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+        if (codec == null) {
+            return true;
+        }
+        return codec instanceof SplittableCompressionCodec;
+    }
+
+    static class PageViewsRecordReader extends RecordReader<LongWritable, Text> {
+        private final LineRecordReader lineRecordReader = new LineRecordReader();
+        private final LongWritable hourlyTimestamp = new LongWritable();
+        private byte[][] domainCodes;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context)
+                throws IOException, InterruptedException {
+            lineRecordReader.initialize(split, context);
+            hourlyTimestamp.set(parseHourlyTimestamp(((FileSplit) split).getPath().getName()));
+            domainCodes = PageViewRecordParser.toDomainCodeBytes(
+                    getDomainCodes(context.getConfiguration()));
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            while (lineRecordReader.nextKeyValue()) {
+                Text line = lineRecordReader.getCurrentValue();
+                if (PageViewRecordParser.matchDomainCode(
+                        line.getBytes(), line.getLength(), domainCodes) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return hourlyTimestamp;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return lineRecordReader.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+            return lineRecordReader.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            lineRecordReader.close();
+        }
+    }
+
+    /**
+     * Reads the hourly files of a CombineFileSplit one after the other.
+     */
+    static class GroupedPageViewsRecordReader extends RecordReader<LongWritable, Text> {
+        private CombineFileSplit combineFileSplit;
+        private TaskAttemptContext context;
+        private PageViewsRecordReader currentReader;
+        private int currentIndex = -1;
+        private long completedLength = 0;
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context)
+                throws IOException, InterruptedException {
+            this.combineFileSplit = (CombineFileSplit) split;
+            this.context = context;
+            openNextReader();
+        }
+
+        private boolean openNextReader() throws IOException, InterruptedException {
+            if (currentReader != null) {
+                completedLength += combineFileSplit.getLength(currentIndex);
+                currentReader.close();
+                currentReader = null;
+            }
+            if (++currentIndex >= combineFileSplit.getNumPaths()) {
+                return false;
+            }
+            currentReader = new PageViewsRecordReader();
+            currentReader.initialize(new FileSplit(combineFileSplit.getPath(currentIndex),
+                    combineFileSplit.getOffset(currentIndex),
+                    combineFileSplit.getLength(currentIndex),
+                    combineFileSplit.getLocations()), context);
+            return true;
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            while (currentReader != null) {
+                if (currentReader.nextKeyValue()) {
+                    return true;
+                }
+                openNextReader();
+            }
+            return false;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return currentReader.getCurrentKey();
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return currentReader.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+            if (currentReader == null) {
+                return 1.0f;
+            }
+            return Math.min(1.0f, (completedLength
+                    + currentReader.getProgress() * combineFileSplit.getLength(currentIndex))
+                    / Math.max(1L, combineFileSplit.getLength()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (currentReader != null) {
+                currentReader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+/**
+ * Derives the URLs of pageview files from the hierarchy of Wikimedia index
+ * pages (year directories, then month directories), fetching all index pages
+ * of each level of the hierarchy concurrently.
+ * <p>
+ * Every file and directory found is recorded in a manifest (URL, size, and
+ * timestamp, as listed in its parent index page), which is saved between runs.
+ * A month directory whose listed timestamp is unchanged since it was last
+ * fetched is not fetched again, its files being taken from the manifest; so a
+ * later run fetches only the root and year index pages, plus those of new (or
+ * changed) months. Directories and files outside of the requested date range
+ * are skipped altogether.
+ *
+ * @author Daniel Vimont
+ */
+public class PageviewFileCrawler {
+
+    // e.g., "2016/" or "2016-01/"
+    private static final Pattern DIRECTORY_HREF_PATTERN =
+            Pattern.compile("(\\d{4})(?:-(\\d{2}))?/");
+    // e.g., "pageviews-20160101-000000.gz"
+    private static final Pattern FILE_HREF_PATTERN =
+            Pattern.compile("pageviews-(\\d{8})-\\d{6}\\.gz");
+    // text following each link of an index page, e.g., "   01-Jan-2016 01:29   89472384"
+    private static final Pattern LISTING_PATTERN =
+            Pattern.compile("\\s*(\\d{2}-\\w{3}-\\d{4} \\d{2}:\\d{2})\\s+(\\d+|-)");
+    private static final String FIELD_DELIMITER = "\t";
+
+    private final Path manifestPath;
+    private final int threads;
+    private final int maxAttempts;
+    private final TreeMap<String, ManifestEntry> manifest = new TreeMap<>();
+    private int indexPagesFetched;
+
+    /**
+     * @param manifestPath local file in which the manifest is kept between runs
+     * @param threads count of index pages fetched concurrently
+     * @param maxAttempts maximum count of attempts to fetch each index page
+     * @throws IOException if an existing manifest cannot be read
+     */
+    public PageviewFileCrawler(Path manifestPath, int threads, int maxAttempts)
+            throws IOException {
+        this.manifestPath = manifestPath;
+        this.threads = threads;
+        this.maxAttempts = maxAttempts;
+        if (Files.exists(manifestPath)) {
+            for (String line : Files.readAllLines(manifestPath, UTF_8)) {
+                String[] fields = line.split(FIELD_DELIMITER, -1);
+                if (fields.length == 3) {
+                    manifest.put(fields[0],
+                            new ManifestEntry(Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param indexPageUrlString URL of the index page at which crawling starts
+     *   (the root of the pageview files, or a year or month directory)
+     * @param fromDate first date of files included, as yyyy, yyyymm, or yyyymmdd
+     *   (null for no lower bound)
+     * @param toDate last date of files included, as yyyy, yyyymm, or yyyymmdd
+     *   (null for no upper bound)
+     * @return URL Strings of the pageview files within the date range
+     * @throws IOException if an index page cannot be fetched, or the manifest saved
+     */
+    public TreeSet<String> crawl(String indexPageUrlString, String fromDate, String toDate)
+            throws IOException, InterruptedException {
+        if (!indexPageUrlString.endsWith("/")) {
+            indexPageUrlString += "/";
+        }
+        ExecutorService fetchers = Executors.newFixedThreadPool(threads);
+        try {
+            // directories to be fetched, each with its entry in its parent's listing
+            //   (the starting page, whose listing is unknown, is always fetched)
+            Map<String, ManifestEntry> directories = new LinkedHashMap<>();
+            directories.put(indexPageUrlString, null);
+            while (!directories.isEmpty()) {
+                Map<String, Future<Map<String, ManifestEntry>>> listings = new LinkedHashMap<>();
+                for (String directoryUrlString : directories.keySet()) {
+                    listings.put(directoryUrlString,
+                            fetchers.submit(() -> getListing(directoryUrlString)));
+                }
+                Map<String, ManifestEntry> staleSubdirectories = new LinkedHashMap<>();
+                for (Map.Entry<String, Future<Map<String, ManifestEntry>>> directoryListing :
+                        listings.entrySet()) {
+                    String directoryUrlString = directoryListing.getKey();
+                    Map<String, ManifestEntry> listing = getResult(directoryListing.getValue());
+                    replaceChildren(directoryUrlString, listing);
+                    if (directories.get(directoryUrlString) != null) {
+                        manifest.put(directoryUrlString, directories.get(directoryUrlString));
+                    }
+                    for (Map.Entry<String, ManifestEntry> child : listing.entrySet()) {
+                        if (child.getKey().endsWith("/") && isStale(
+                                child.getKey(), child.getValue(), fromDate, toDate)) {
+                            staleSubdirectories.put(child.getKey(), child.getValue());
+                        }
+                    }
+                }
+                directories = staleSubdirectories;
+            }
+        } finally {
+            fetchers.shutdownNow();
+        }
+        save();
+
+        TreeSet<String> pageviewFileUrlStrings = new TreeSet<>();
+        for (Map.Entry<String, ManifestEntry> entry :
+                manifest.tailMap(indexPageUrlString).entrySet()) {
+            String urlString = entry.getKey();
+            if (!urlString.startsWith(indexPageUrlString)) {
+                break;
+            }
+            Matcher fileMatcher = FILE_HREF_PATTERN.matcher(
+                    urlString.substring(urlString.lastIndexOf('/') + 1));
+            if (fileMatcher.matches() && isInRange(fileMatcher.group(1), fromDate, toDate)) {
+                pageviewFileUrlStrings.add(urlString);
+            }
+        }
+        System.out.println("** " + indexPagesFetched + " index pages fetched; "
+                + pageviewFileUrlStrings.size() + " pageview files found in manifest "
+                + manifestPath);
+        return pageviewFileUrlStrings;
+    }
+
+    /**
+     * A year directory is always fetched (its timestamp is unchanged by files
+     * added to its months); a month directory is fetched only if its listed
+     * timestamp differs from that recorded when it was last fetched.
+     *
+     * @return true if the directory is within the date range and is to be fetched
+     */
+    private boolean isStale(String directoryUrlString, ManifestEntry listedEntry,
+            String fromDate, String toDate) {
+        String directoryName = directoryUrlString.substring(
+                directoryUrlString.lastIndexOf('/', directoryUrlString.length() - 2) + 1);
+        Matcher directoryMatcher = DIRECTORY_HREF_PATTERN.matcher(directoryName);
+        if (!directoryMatcher.matches()) {
+            return false;
+        }
+        boolean isMonth = directoryMatcher.group(2) != null;
+        String datePrefix = directoryMatcher.group(1) + (isMonth ? directoryMatcher.group(2) : "");
+        if (!isInRange(datePrefix, fromDate, toDate)) {
+            return false;
+        }
+        return !isMonth || !listedEntry.equals(manifest.get(directoryUrlString));
+    }
+
+    private Map<String, ManifestEntry> getListing(String directoryUrlString)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        String indexPageContent = null;
+        for (int attempt = 1; indexPageContent == null; attempt++) {
+            try {
+                indexPageContent = WikimediaFileDownloader.getIndexPageContent(directoryUrlString);
+            } catch (IOException ex) {
+                if (attempt >= maxAttempts) {
+                    throw ex;
+                }
+                long backoffMillis = AdaptiveConcurrencyController.getBackoffMillis(attempt, 0);
+                System.out.println("**** Attempt " + attempt + " to fetch index page: "
+                        + directoryUrlString + " failed (" + ex + "); retrying in "
+                        + backoffMillis + " ms");
+                Thread.sleep(backoffMillis);
+            }
+        }
+        synchronized (this) {
+            indexPagesFetched++;
+        }
+        Map<String, ManifestEntry> listing = new TreeMap<>();
+        // (extract all 'a' tags with 'href' attribute, plus the listing that follows each)
+        for (Element link : Jsoup.parse(indexPageContent).select("a[href]")) {
+            String href = link.attr("href");
+            if (!DIRECTORY_HREF_PATTERN.matcher(href).matches()
+                    && !FILE_HREF_PATTERN.matcher(href).matches()) {
+                continue;
+            }
+            long size = -1;
+            String timestamp = "";
+            Node nextSibling = link.nextSibling();
+            if (nextSibling instanceof TextNode) {
+                Matcher listingMatcher =
+                        LISTING_PATTERN.matcher(((TextNode) nextSibling).getWholeText());
+                if (listingMatcher.lookingAt()) {
+                    timestamp = listingMatcher.group(1);
+                    if (!listingMatcher.group(2).equals("-")) {
+                        size = Long.parseLong(listingMatcher.group(2));
+                    }
+                }
+            }
+            listing.put(directoryUrlString + href, new ManifestEntry(size, timestamp));
+        }
+        return listing;
+    }
+
+    /**
+     * Replaces the manifest entries of the directory's children with its current
+     * listing; the recorded entry of a subdirectory is kept until the
+     * subdirectory itself is fetched.
+     */
+    private void replaceChildren(String directoryUrlString, Map<String, ManifestEntry> listing) {
+        List<String> formerChildren = new ArrayList<>();
+        for (String urlString : manifest.tailMap(directoryUrlString, false).keySet()) {
+            if (!urlString.startsWith(directoryUrlString)) {
+                break;
+            }
+            int slashIndex = urlString.indexOf('/', directoryUrlString.length());
+            if (slashIndex < 0 || slashIndex == urlString.length() - 1) {
+                formerChildren.add(urlString);
+            }
+        }
+        for (String urlString : formerChildren) {
+            if (!listing.containsKey(urlString)) {
+                removeWithDescendants(urlString);
+            }
+        }
+        for (Map.Entry<String, ManifestEntry> child : listing.entrySet()) {
+            if (!child.getKey().endsWith("/")) {
+                manifest.put(child.getKey(), child.getValue());
+            } else if (!manifest.containsKey(child.getKey())) {
+                manifest.put(child.getKey(), new ManifestEntry(-1, "")); // (not yet fetched)
+            }
+        }
+    }
+
+    private void removeWithDescendants(String urlString) {
+        manifest.keySet().removeIf(key -> key.startsWith(urlString));
+    }
+
+    /**
+     * @param datePrefix yyyy, yyyymm, or yyyymmdd
+     * @return true if some date beginning with the prefix is within the range
+     */
+    static boolean isInRange(String datePrefix, String fromDate, String toDate) {
+        if (fromDate != null) {
+            int length = Math.min(datePrefix.length(), fromDate.length());
+            if (datePrefix.substring(0, length).compareTo(fromDate.substring(0, length)) < 0) {
+                return false;
+            }
+        }
+        if (toDate != null) {
+            int length = Math.min(datePrefix.length(), toDate.length());
+            if (datePrefix.substring(0, length).compareTo(toDate.substring(0, length)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves the manifest (via a temporary file, so that an interrupted save
+     * never leaves a truncated manifest).
+     */
+    private void save() throws IOException {
+        Path absoluteManifestPath = manifestPath.toAbsolutePath();
+        Path temporaryPath = Paths.get(absoluteManifestPath + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, UTF_8)) {
+            for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+                writer.write(entry.getKey() + FIELD_DELIMITER + entry.getValue().size
+                        + FIELD_DELIMITER + entry.getValue().timestamp);
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryPath, absoluteManifestPath, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static class ManifestEntry {
+        private final long size;
+        private final String timestamp;
+
+        ManifestEntry(long size, String timestamp) {
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ManifestEntry)) {
+                return false;
+            }
+            ManifestEntry otherEntry = (ManifestEntry) other;
+            return size == otherEntry.size && timestamp.equals(otherEntry.timestamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + timestamp.hashCode();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Transforms a gzipped hourly pageview file as it is downloaded: the stream is
+ * decompressed in flight, only the lines of the configured domain codes are
+ * kept (just as {@link PageViewsInputFormat} would keep them), and the kept lines
+ * are recompressed with a (by default splittable) Hadoop codec.
+ * <p>
+ * Each transcoded file keeps the name of its hourly source file (from which
+ * {@link PageViewsInputFormat} derives its timestamp), with the domain codes
+ * and codec extension in place of ".gz"; e.g., pageviews-20160701-110000.gz
+ * becomes pageviews-20160701-110000.en.bz2.
+ *
+ * @author Daniel Vimont
+ */
+public class PageviewFileTranscoder {
+
+    private static final String SOURCE_EXTENSION = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String[] domainCodes;
+    private final byte[][] domainCodeBytes;
+    private final CompressionCodec codec;
+
+    /**
+     * @param domainCodes Wikimedia domain codes of lines to be kept (e.g., "en", "de")
+     * @param codecName name of a Hadoop compression codec (e.g., "bzip2")
+     * @throws IllegalArgumentException if no such codec is available
+     */
+    public PageviewFileTranscoder(String[] domainCodes, String codecName) {
+        this.domainCodes = domainCodes;
+        this.domainCodeBytes = PageViewRecordParser.toDomainCodeBytes(domainCodes);
+        this.codec = new CompressionCodecFactory(new Configuration()).getCodecByName(codecName);
+        if (codec == null) {
+            throw new IllegalArgumentException("Compression codec <" + codecName
+                    + "> is not available");
+        }
+        if (!(codec instanceof SplittableCompressionCodec)) {
+            System.out.println("**** WARNING: files transcoded with compression codec <"
+                    + codecName + "> cannot be split by Hadoop");
+        }
+    }
+
+    /**
+     * @param sourceFileName e.g., pageviews-20160701-110000.gz
+     * @return e.g., pageviews-20160701-110000.en.bz2
+     */
+    public String getTargetFileName(String sourceFileName) {
+        String baseName = sourceFileName.endsWith(SOURCE_EXTENSION)
+                ? sourceFileName.substring(0, sourceFileName.length() - SOURCE_EXTENSION.length())
+                : sourceFileName;
+        return baseName + "." + String.join("_", domainCodes) + codec.getDefaultExtension();
+    }
+
+    /**
+     * Transcodes the gzipped stream in its entirety (reading the source stream
+     * to its end, so that any digest computed over it covers every byte).
+     *
+     * @param gzippedInputStream stream of a gzipped hourly pageview file
+     * @param outputStream stream to which the transcoded file is written (not closed)
+     * @return count of lines kept
+     */
+    public long transcode(InputStream gzippedInputStream, OutputStream outputStream)
+            throws IOException {
+        long keptLines = 0;
+        CompressionOutputStream compressedOutputStream = codec.createOutputStream(outputStream);
+        LineReader lineReader = new LineReader(
+                new GZIPInputStream(gzippedInputStream, BUFFER_SIZE), BUFFER_SIZE);
+        Text line = new Text();
+        while (lineReader.readLine(line) > 0) {
+            if (PageViewRecordParser.matchDomainCode(
+                    line.getBytes(), line.getLength(), domainCodeBytes) >= 0) {
+                compressedOutputStream.write(line.getBytes(), 0, line.getLength());
+                compressedOutputStream.write('\n');
+                keptLines++;
+            }
+        }
+        compressedOutputStream.finish();
+        // (bytes trailing the gzip data, if any, are consumed but ignored)
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (gzippedInputStream.read(buffer) != -1) { }
+        return keptLines;
+    }
+}
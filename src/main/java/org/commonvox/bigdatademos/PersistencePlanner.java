@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.RDDInfo;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.LongAccumulator;
+
+/**
+ * Caches each intermediate RDD that is reused by more than one action, at a
+ * single (configurable) storage level, and releases it once its last consumer
+ * has run.
+ * <p>
+ * Each persisted RDD is instrumented with an accumulator counting the
+ * partitions actually computed; a count exceeding the RDD's number of
+ * partitions means that cached blocks were evicted (cache misses) and
+ * recomputed, possibly all the way back from the raw data.
+ *
+ * @author Daniel Vimont
+ */
+public class PersistencePlanner {
+
+    private final JavaSparkContext sc;
+    private final StorageLevel storageLevel;
+    private final Map<String, PersistedRdd> persistedRdds = new LinkedHashMap<>();
+
+    /**
+     * @param sc the JavaSparkContext
+     * @param storageLevel level at which all planned RDDs are persisted
+     */
+    public PersistencePlanner(JavaSparkContext sc, StorageLevel storageLevel) {
+        this.sc = sc;
+        this.storageLevel = storageLevel;
+        if (storageLevel.useOffHeap()
+                && !sc.getConf().getBoolean("spark.memory.offHeap.enabled", false)) {
+            System.err.println("WARNING: OFF_HEAP storage level requested, but "
+                    + "spark.memory.offHeap.enabled is not set (nor spark.memory.offHeap.size); "
+                    + "cached blocks will be written to disk.");
+        }
+    }
+
+    /**
+     * Accepts the storage-level abbreviations used by runSparkJobs, as well as
+     * any of Spark's own storage-level names (e.g. MEMORY_ONLY_SER).
+     *
+     * @param name MEM, MEMDISK, DISK, MEM_SER, MEMDISK_SER, OFF_HEAP, or NONE
+     * @return the corresponding StorageLevel
+     * @throws IllegalArgumentException if name is not recognized
+     */
+    public static StorageLevel parseStorageLevel(String name) {
+        switch (name.toUpperCase()) {
+            case "MEM":
+                return StorageLevel.MEMORY_ONLY();
+            case "MEMDISK":
+                return StorageLevel.MEMORY_AND_DISK();
+            case "DISK":
+                return StorageLevel.DISK_ONLY();
+            case "MEM_SER":
+                return StorageLevel.MEMORY_ONLY_SER();
+            case "MEMDISK_SER":
+                return StorageLevel.MEMORY_AND_DISK_SER();
+            default:
+                return StorageLevel.fromString(name.toUpperCase());
+        }
+    }
+
+    public StorageLevel getStorageLevel() {
+        return storageLevel;
+    }
+
+    /**
+     * @param rdd RDD to be reused by more than one action
+     * @param name name under which the RDD is reported (and shown in the Spark UI)
+     * @return the persisted (and instrumented) RDD, to be used in place of the passed RDD
+     */
+    public <K, V> JavaPairRDD<K, V> persist(JavaPairRDD<K, V> rdd, String name) {
+        if (storageLevel.equals(StorageLevel.NONE())) {
+            return rdd;
+        }
+        LongAccumulator partitionsComputed =
+                sc.sc().longAccumulator(name + " partitions computed");
+        JavaPairRDD<K, V> persistedRdd = rdd
+                .mapPartitionsToPair(records -> {
+                    partitionsComputed.add(1);
+                    return records;
+                }, true);
+        persistedRdd.setName(name).persist(storageLevel);
+        persistedRdds.put(name, new PersistedRdd(
+                persistedRdd.id(), rdd.getNumPartitions(), partitionsComputed));
+        return persistedRdd;
+    }
+
+    /**
+     * Logs statistics of the RDD, then unpersists it (without blocking).
+     *
+     * @param rdd RDD returned by {@link #persist}, all consumers of which have run
+     */
+    public void release(JavaPairRDD<?, ?> rdd) {
+        if (!persistedRdds.containsKey(rdd.name())) {
+            return;
+        }
+        logStatistics(rdd.name());
+        rdd.unpersist(false);
+        persistedRdds.remove(rdd.name());
+    }
+
+    private void logStatistics(String name) {
+        PersistedRdd persistedRdd = persistedRdds.get(name);
+        RDDInfo rddInfo = null;
+        for (RDDInfo info : sc.sc().getRDDStorageInfo()) {
+            if (info.id() == persistedRdd.id) {
+                rddInfo = info;
+            }
+        }
+        long computed = persistedRdd.partitionsComputed.value();
+        StringBuilder stats = new StringBuilder("Cache statistics for <").append(name)
+                .append("> (").append(storageLevel.description()).append("): ")
+                .append(computed).append(" partition computations for ")
+                .append(persistedRdd.numPartitions).append(" partitions (")
+                .append(Math.max(0, computed - persistedRdd.numPartitions))
+                .append(" recomputed after cache misses)");
+        if (rddInfo != null) {
+            stats.append("; ").append(rddInfo.numCachedPartitions()).append(" partitions cached, ")
+                    .append(toMegabytes(rddInfo.memSize())).append(" MB in memory, ")
+                    .append(toMegabytes(rddInfo.diskSize())).append(" MB on disk, ")
+                    .append(toMegabytes(rddInfo.externalBlockStoreSize())).append(" MB off-heap");
+        } else {
+            stats.append("; no partitions currently cached");
+        }
+        System.out.println(stats);
+    }
+
+    private static String toMegabytes(long bytes) {
+        return String.format("%.1f", bytes / 1048576.0);
+    }
+
+    private static class PersistedRdd {
+        private final int id;
+        private final int numPartitions;
+        private final LongAccumulator partitionsComputed;
+
+        PersistedRdd(int id, int numPartitions, LongAccumulator partitionsComputed) {
+            this.id = id;
+            this.numPartitions = numPartitions;
+            this.partitionsComputed = partitionsComputed;
+        }
+    }
+}
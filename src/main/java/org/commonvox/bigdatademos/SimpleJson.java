@@ -16,6 +16,8 @@ package org.commonvox.bigdatademos;
  * limitations under the License.
  */
 
+import java.util.Arrays;
+
 /**
  * Simple tools for constructing JSON output.
  * 
@@ -28,6 +30,7 @@ public class SimpleJson {
     public static final String ARRAY_OPEN = "[";
     public static final String ARRAY_CLOSE = "]";
     public static final String DELIMITER = ",";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     
     public static String object(String text) {
         StringBuilder stringBuilder = new StringBuilder();
@@ -40,6 +43,225 @@ public class SimpleJson {
                 .append(value).append("\"").toString();
     }
     
+    /**
+     * Streaming JSON writer, appending into a single buffer that is reused
+     * (via {@link #reset}) for successive documents. Delimiters between members
+     * and elements are inserted automatically, strings are escaped as they are
+     * appended, and numbers are written as JSON numbers.
+     */
+    public static class Writer {
+        private final StringBuilder buffer;
+        // per nesting level: whether the next member/element is the first
+        private boolean[] firstInScope = new boolean[8];
+        private int depth = 0;
+        private boolean nameWritten = false;
+
+        public Writer() {
+            this(1024);
+        }
+
+        /**
+         * @param initialCapacity initial capacity (in chars) of the buffer
+         */
+        public Writer(int initialCapacity) {
+            buffer = new StringBuilder(initialCapacity);
+            reset();
+        }
+
+        /**
+         * Clears the buffer (retaining its capacity) for the writing of a new document.
+         *
+         * @return this writer
+         */
+        public Writer reset() {
+            buffer.setLength(0);
+            depth = 0;
+            firstInScope[0] = true;
+            nameWritten = false;
+            return this;
+        }
+
+        public Writer beginObject() {
+            separate();
+            buffer.append(OBJECT_OPEN);
+            return push();
+        }
+
+        public Writer endObject() {
+            depth--;
+            buffer.append(OBJECT_CLOSE);
+            return this;
+        }
+
+        public Writer beginArray() {
+            separate();
+            buffer.append(ARRAY_OPEN);
+            return push();
+        }
+
+        public Writer endArray() {
+            depth--;
+            buffer.append(ARRAY_CLOSE);
+            return this;
+        }
+
+        /**
+         * @param name name of the member whose value is written next
+         * @return this writer
+         */
+        public Writer name(String name) {
+            separate();
+            buffer.append('"');
+            escape(name);
+            buffer.append("\":");
+            nameWritten = true;
+            return this;
+        }
+
+        public Writer value(long value) {
+            separate();
+            buffer.append(value);
+            return this;
+        }
+
+        public Writer value(boolean value) {
+            separate();
+            buffer.append(value);
+            return this;
+        }
+
+        public Writer value(CharSequence value) {
+            return beginString().appendEscaped(value).endString();
+        }
+
+        public Writer field(String name, long value) {
+            return name(name).value(value);
+        }
+
+        public Writer field(String name, CharSequence value) {
+            return name(name).value(value);
+        }
+
+        public Writer field(String name, boolean value) {
+            return name(name).value(value);
+        }
+
+        /**
+         * Opens a string value, the content of which is then appended in
+         * parts (via appendEscaped), without concatenation of the parts.
+         *
+         * @return this writer
+         */
+        public Writer beginString() {
+            separate();
+            buffer.append('"');
+            return this;
+        }
+
+        public Writer appendEscaped(CharSequence part) {
+            escape(part);
+            return this;
+        }
+
+        /**
+         * @param part content to be appended to the open string value
+         * @param oldChar char to be replaced (e.g., '_')
+         * @param newChar replacement char (e.g., ' ')
+         * @return this writer
+         */
+        public Writer appendEscaped(CharSequence part, char oldChar, char newChar) {
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                escape(c == oldChar ? newChar : c);
+            }
+            return this;
+        }
+
+        public Writer endString() {
+            buffer.append('"');
+            return this;
+        }
+
+        public int length() {
+            return buffer.length();
+        }
+
+        @Override
+        public String toString() {
+            return buffer.toString();
+        }
+
+        private Writer push() {
+            if (++depth == firstInScope.length) {
+                firstInScope = Arrays.copyOf(firstInScope, depth * 2);
+            }
+            firstInScope[depth] = true;
+            return this;
+        }
+
+        private void separate() {
+            if (nameWritten) {
+                nameWritten = false;
+                return;
+            }
+            if (firstInScope[depth]) {
+                firstInScope[depth] = false;
+            } else {
+                buffer.append(DELIMITER);
+            }
+        }
+
+        private void escape(CharSequence text) {
+            for (int i = 0; i < text.length(); i++) {
+                escape(text.charAt(i));
+            }
+        }
+
+        private void escape(char c) {
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\b':
+                    buffer.append("\\b");
+                    break;
+                case '\f':
+                    buffer.append("\\f");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        buffer.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        buffer.append(c);
+                    }
+            }
+        }
+    }
+    
+    /**
+     * @param docId document ID
+     * @return ElasticSearch bulk-API action line indexing the document that follows it,
+     *   e.g. {"index":{"_id":"20161023"}}
+     */
+    public static String bulkIndexAction(String docId) {
+        StringBuilder stringBuilder = new StringBuilder();
+        return stringBuilder.append("{\"index\":").append(OBJECT_OPEN)
+                .append(nameValuePair("_id", docId)).append(OBJECT_CLOSE)
+                .append(OBJECT_CLOSE).toString();
+    }
+    
 //    public static String array(Iterable<String> entries) {
 //        StringBuilder stringBuilder = new StringBuilder();
 //        stringBuilder.append("[");
@@ -16,24 +16,27 @@
 package org.commonvox.bigdatademos;
 
 import java.time.LocalDate;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileSplit;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.spark.Partitioner;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaNewHadoopRDD;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
 import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.storage.StorageLevel;
 import scala.Tuple2;
 
@@ -47,8 +50,7 @@ public class SparkDriver {
     
     // private static int displayCount = 0;
     private static final int POPULAR_PAGES_LIMIT = 500;
-    private static final String DISCARD_INDICATOR = "&$";
-    private static final DailyMapper DAILY_MAPPER = new DailyMapper();
+    private static final TopPagesMapper TOP_PAGES_MAPPER = new TopPagesMapper();
     private static final WeeklyMapper WEEKLY_MAPPER = new WeeklyMapper();
     private static final MonthlyMapper MONTHLY_MAPPER = new MonthlyMapper();
     private static final YearlyMapper YEARLY_MAPPER = new YearlyMapper();
@@ -56,23 +58,30 @@ public class SparkDriver {
     public static final String VALUE_ARRAY_OPEN_TAG = "[&[";
     public static final String VALUE_ARRAY_CLOSE_TAG = "]&]";
     public static final String VALUE_ARRAY_DELIMITER = "\n"; // line-feed delimiter mirrors original raw-data delimiter
-    private static StorageLevel MASTER_PERSISTENCE_OPTION = StorageLevel.MEMORY_AND_DISK();
+    // optional settings, passed via spark-submit (e.g., --conf spark.wikitrends.domainCodes=en,de)
+    public static final String DOMAIN_CODES_CONF_KEY = "spark.wikitrends.domainCodes";
+    public static final String PRE_AGGREGATE_CONF_KEY = "spark.wikitrends.preAggregate";
+    public static final String PRE_AGGREGATE_HOURS_CONF_KEY =
+            "spark.wikitrends.preAggregate.hoursPerPartition";
+    public static final String PRE_AGGREGATE_BUDGET_CONF_KEY =
+            "spark.wikitrends.preAggregate.memoryBudgetMb";
+    // "tuple" (default) writes (docId,json) lines; "bulk" writes ElasticSearch bulk-API NDJSON
+    public static final String OUTPUT_FORMAT_CONF_KEY = "spark.wikitrends.outputFormat";
+    public static final String BULK_OUTPUT_FORMAT = "bulk";
     public enum COUNTERS { GOOD, BAD, CONTAINS_TABS, CONTAINS_QUOTES, NONINTEGER_COUNT_OF_VIEWS }
     
     public static void main( String[] args ) throws Exception {
         if (args.length < 7) {
           System.err.println(
-                  "Usage: SparkDriver <hdfs-master url> <storage-level> <input path> "
+                  "Usage: SparkDriver <hdfs-master url> "
+                          + "<storage-level: MEM|MEMDISK|DISK|MEM_SER|MEMDISK_SER|OFF_HEAP|NONE> "
+                          + "<input path> "
                           + "<daily output path> <weekly output path> "
                           + "<monthly output path> <yearly output path>");
           System.exit(-1);
         }
         String hdfsNamenode = args[0];
-        if (args[1].toUpperCase().equals("MEMDISK")) {
-            MASTER_PERSISTENCE_OPTION = StorageLevel.MEMORY_AND_DISK();
-        } else if (args[1].toUpperCase().equals("DISK")) {
-            MASTER_PERSISTENCE_OPTION = StorageLevel.DISK_ONLY();
-        }
+        StorageLevel storageLevel = PersistencePlanner.parseStorageLevel(args[1]);
         String inputHdfsFile = args[2];
         String outputDailyHdfsFile = args[3];
         String outputWeeklyHdfsFile = args[4];
@@ -80,310 +89,477 @@ public class SparkDriver {
         String outputYearlyHdfsFile = args[6];
         
         System.out.println("Commencing DAILY processing");
-        SparkConf conf = new SparkConf().setAppName("WikimediaPageViewsProcessing");
+        SparkConf conf = WikitrendsKryoRegistrator.configure(
+                new SparkConf().setAppName("WikimediaPageViewsProcessing"));
         JavaSparkContext sc = new JavaSparkContext(conf);
+        // every RDD consumed by more than one action is persisted, so that raw data is read once
+        PersistencePlanner persistencePlanner = new PersistencePlanner(sc, storageLevel);
+        boolean bulkOutput = conf.get(OUTPUT_FORMAT_CONF_KEY, "tuple")
+                .equalsIgnoreCase(BULK_OUTPUT_FORMAT);
+        // optionally, rankings are also indexed into ElasticSearch directly from executors
+        ElasticSearchSink elasticSearchSink =
+                ElasticSearchSink.isConfigured(conf) ? new ElasticSearchSink(conf) : null;
+        String[] domainCodes = conf.get(
+                DOMAIN_CODES_CONF_KEY, PageViewRecordParser.DEFAULT_DOMAIN_CODE).split(",");
+        Configuration hadoopConf = new Configuration();
+        // lines of other domains are dropped by the InputFormat as they are read
+        PageViewsInputFormat.setDomainCodes(hadoopConf, domainCodes);
+        // in pre-aggregation mode, each partition reads (up to) a full day of hourly
+        //   files and sums each page's views before anything is shuffled
+        boolean preAggregate = conf.getBoolean(PRE_AGGREGATE_CONF_KEY, false);
+        long preAggregationBudget = 0;
+        if (preAggregate) {
+            PageViewsInputFormat.setHoursPerSplit(
+                    hadoopConf, conf.getInt(PRE_AGGREGATE_HOURS_CONF_KEY, 24));
+            preAggregationBudget = conf.getLong(PRE_AGGREGATE_BUDGET_CONF_KEY, 256L) << 20;
+        }
         JavaNewHadoopRDD<LongWritable, Text> hadoopRDD = 
              (JavaNewHadoopRDD) sc.newAPIHadoopFile(hdfsNamenode +
                         inputHdfsFile,  // e.g. "test/raw_files", 
-                TextInputFormat.class,  // format of the inputted file data
-                LongWritable.class,     // key class
+                PageViewsInputFormat.class,  // format of the inputted file data
+                LongWritable.class,     // key class -- hourly timestamp (yyyymmddhh)
                 Text.class,             // value class -- raw data
-                new Configuration()     // hadoop config
+                hadoopConf              // hadoop config
         );
-        JavaPairRDD<String, Integer> pageViewsDaily =
-                hadoopRDD.mapPartitionsWithInputSplit(DAILY_MAPPER, true)
-                        .mapToPair(tuple -> tuple)
-                        // key is [yearMonthDayDomainCode + " " + webpageExtension]
-                        .reduceByKey((a, b) -> a + b)  // reduce to count of daily views
-                        .filter(tuple -> tuple._2() > 100) // filter out pages w/ small daily-views
-                ;
+        JavaPairRDD<PageViewKey, Long> hourlyOrPreAggregatedViews =
+                hadoopRDD.mapPartitionsWithInputSplit(
+                        new DailyMapper(domainCodes, preAggregationBudget), true)
+                        .mapToPair(tuple -> tuple);
+        // daily views are partitioned by pageId alone, as the page dictionary requires
+        PageDictionary.PagePartitioner pagePartitioner =
+                new PageDictionary.PagePartitioner(hadoopRDD.getNumPartitions());
+        // key is [yearMonthDay, domainCode + " " + webpageExtension];
+        //   in pre-aggregation mode, map-side combine is already done, so is bypassed here
+        JavaPairRDD<PageViewKey, Long> pageViewsDaily = persistencePlanner.persist(
+                sumViews(hourlyOrPreAggregatedViews, pagePartitioner, !preAggregate)
+                        .filter(tuple -> tuple._2() > 100), // filter out pages w/ small daily-views
+                "pageViewsDaily");
+
+        // Each distinct pageId [domainCode + " " + webpageExtension] is assigned a dense
+        //   pageIndex; all subsequent stages work on (interval, pageIndex) packed into a long,
+        //   and pageId Strings are rehydrated only for the most popular pages.
+        JavaPairRDD<PageViewKey, Long> pageDictionary = persistencePlanner.persist(
+                PageDictionary.build(pageViewsDaily), "pageDictionary");
+        JavaPairRDD<Long, Long> pageViewsDailyEncoded = persistencePlanner.persist(
+                PageDictionary.encode(pageViewsDaily), "pageViewsDailyEncoded");
         
-        // NOTE: the logic to create each of the *PagesByPopularity RDDs below is
+        // NOTE: the logic to create each of the *TopPages RDDs below is
         //   quite similar, and arguably should be modularized to remove redundancy.
         //   Currently, two considerations override that: (1) the wish to keep
         //   the logic as "readable" as possible by those reviewing this code, and 
         //   (2) the fact that this code is in "alpha" state, and as it evolves
         //   into a more production-ready state, unique modifications may need to be
         //   made to either daily, monthly, or weekly processing.
-        JavaPairRDD<String, String> dailyPagesByPopularity =
-                pageViewsDaily
-                        .mapToPair(
-                            // new key is yyyymmddnnnnnnnnn, where nnnnnnnnn is views
-                            //   key,value example -->> (20160929000001871863,en Main_Page)
-                            tuple -> new Tuple2<>(
-                                    tuple._1().substring(0, 8) + String.format("%012d", tuple._2()), tuple._1().substring(8)))
-                        .sortByKey(false)
-                        .mapToPair(new DiscardMapper(8))
-                        // each partition will retain only its most popular!
-                        .filter(tuple -> (!tuple._2().startsWith(DISCARD_INDICATOR)))
-                        .mapToPair(   // new key is yyyymmdd (day)
-                            tuple -> new Tuple2<>(
-                                    tuple._1().substring(0, 8), tuple._2() + tuple._1().substring(8)))
-                        .groupByKey() // YES, groupByKey for denormalization!!
-                        .mapToPair(new JsonMapper())
+        // Ranking: within each partition, a bounded TopPagesHeap is filled for each
+        //   interval; heaps are then merged across partitions, so only the heaps
+        //   (never the full set of pages) are shuffled, and nothing is sorted but
+        //   the POPULAR_PAGES_LIMIT pages finally retained for each interval.
+        JavaPairRDD<Integer, TopPagesHeap> dailyTopPages =
+                pageViewsDailyEncoded
+                        .mapPartitionsToPair(TOP_PAGES_MAPPER) // key is yyyymmdd (day)
+                        .reduceByKey(TopPagesHeap::merge)
                 ;
-        dailyPagesByPopularity.saveAsTextFile(hdfsNamenode + outputDailyHdfsFile);
+        saveTopPages(sc, persistencePlanner, dailyTopPages, "dailyTopPages", pageDictionary,
+                hdfsNamenode + outputDailyHdfsFile, bulkOutput, elasticSearchSink);
+        // the dictionary and encoded views have now been materialized from pageViewsDaily
+        persistencePlanner.release(pageViewsDaily);
 
         System.out.println("Commencing MONTHLY processing");
-        JavaPairRDD<String, Integer> pageViewsMonthly = 
-                pageViewsDaily.mapToPair(MONTHLY_MAPPER)
-                        .reduceByKey((a, b) -> a + b);
+        // every interval's views of a page share the partition of the page (see
+        //   PageDictionary), so rollups are summed within partitions, without shuffle
+        JavaPairRDD<Long, Long> pageViewsMonthly = persistencePlanner.persist(
+                pageViewsDailyEncoded.mapPartitionsToPair(
+                        new RollupMapper(MONTHLY_MAPPER), true),
+                "pageViewsMonthly");
         
-        JavaPairRDD<String, String> monthlyPagesByPopularity =
+        JavaPairRDD<Integer, TopPagesHeap> monthlyTopPages =
                 pageViewsMonthly
                         .filter(tuple -> tuple._2() > 100) // cull out low-ballers
-                        .mapToPair(
-                            // new key is yyyymmnnnnnnnnn, where nnnnnnnnn is views
-                            //   key,value example -->> (20160929000001871863,20160929en Main_Page)
-                            tuple -> new Tuple2<>(
-                                    tuple._1().substring(0, 6) + String.format("%012d", tuple._2()), tuple._1().substring(6)))
-                        .sortByKey(false)
-                        .mapToPair(new DiscardMapper(6))
-                        .filter(tuple -> (!tuple._2().startsWith(DISCARD_INDICATOR)))
-                        // investigate collapsing the next two (or three) steps into a single #reduceByKey step
-                        .mapToPair(   // new key is yyyymm
-                            tuple -> new Tuple2<String, String>(
-                                    tuple._1().substring(0, 6), tuple._2() + tuple._1().substring(6)))
-                        .groupByKey()
-                        .mapToPair(new JsonMapper())
+                        .mapPartitionsToPair(TOP_PAGES_MAPPER) // key is yyyymm
+                        .reduceByKey(TopPagesHeap::merge)
                 ;
-        monthlyPagesByPopularity.saveAsTextFile(hdfsNamenode + outputMonthlyHdfsFile);
+        saveTopPages(sc, persistencePlanner, monthlyTopPages, "monthlyTopPages", pageDictionary,
+                hdfsNamenode + outputMonthlyHdfsFile, bulkOutput, elasticSearchSink);
+        persistencePlanner.release(pageViewsDailyEncoded);
         
         System.out.println("Commencing YEARLY processing");
-        JavaPairRDD<String, Integer> pageViewsYearly = 
-                pageViewsMonthly.mapToPair(YEARLY_MAPPER)
-                        .reduceByKey((a, b) -> a + b);
+        JavaPairRDD<Long, Long> pageViewsYearly = 
+                pageViewsMonthly.mapPartitionsToPair(new RollupMapper(YEARLY_MAPPER), true);
         
-        JavaPairRDD<String, String> yearlyPagesByPopularity =
+        JavaPairRDD<Integer, TopPagesHeap> yearlyTopPages =
                 pageViewsYearly
                         .filter(tuple -> tuple._2() > 100) // cull out low-ballers
-                        .mapToPair(
-                            // new key is yyyynnnnnnnnnnnn, where nnnnnnnnnnnn is views
-                            //   key,value example -->> (20160929000001871863,20160929en Main_Page)
-                            tuple -> new Tuple2<>(
-                                    tuple._1().substring(0, 4) + String.format("%012d", tuple._2()), tuple._1().substring(4)))
-                        .sortByKey(false)
-                        .mapToPair(new DiscardMapper(4))
-                        .filter(tuple -> (!tuple._2().startsWith(DISCARD_INDICATOR)))
-                        .mapToPair(  // new key is yyyy
-                            tuple -> new Tuple2<>(
-                                    tuple._1().substring(0, 4), tuple._2() + tuple._1().substring(4)))
-                        .groupByKey()
-                        .mapToPair(new JsonMapper())
+                        .mapPartitionsToPair(TOP_PAGES_MAPPER) // key is yyyy
+                        .reduceByKey(TopPagesHeap::merge)
                 ;
-        yearlyPagesByPopularity.saveAsTextFile(hdfsNamenode + outputYearlyHdfsFile);
+        saveTopPages(sc, persistencePlanner, yearlyTopPages, "yearlyTopPages", pageDictionary,
+                hdfsNamenode + outputYearlyHdfsFile, bulkOutput, elasticSearchSink);
+        persistencePlanner.release(pageViewsMonthly);
+        persistencePlanner.release(pageDictionary);
         
         // TO DO: compute and output pageviewsByWebpage
         // JavaPairRDD<String, String> pageviewsByWebpage;
         //    key is [domainCode + " " + webpageExtension]
         //    value is JSON array of all (date & viewCount-for-that-date) for the webpage
     }
+
+    /**
+     * Sums views into a mutable long[1] per key, so that no Long is boxed per
+     * merged record (as with reduceByKey), but only once per key outputted.
+     */
+    private static <K> JavaPairRDD<K, Long> sumViews(JavaPairRDD<K, Long> views,
+            Partitioner partitioner, boolean mapSideCombine) {
+        return views.combineByKey(
+                countViews -> new long[] {countViews},
+                (sum, countViews) -> {
+                    sum[0] += countViews;
+                    return sum;
+                },
+                (sum, otherSum) -> {
+                    sum[0] += otherSum[0];
+                    return sum;
+                },
+                partitioner, mapSideCombine, null)
+                .mapValues(sum -> sum[0]);
+    }
+
+    /**
+     * Rehydrates the pageIds of the passed top pages (only), and outputs JSON,
+     * either as (docId,json) tuples, or as ElasticSearch bulk-API NDJSON (an
+     * action line bearing the docId, followed by the document line); in the
+     * latter case, intervals are sorted, so each file holds a range of intervals.
+     * If an ElasticSearchSink is passed, the JSON is also indexed directly.
+     */
+    private static void saveTopPages(JavaSparkContext sc,
+            PersistencePlanner persistencePlanner,
+            JavaPairRDD<Integer, TopPagesHeap> topPagesHeaps, String name,
+            JavaPairRDD<PageViewKey, Long> pageDictionary, String outputPath,
+            boolean bulkOutput, ElasticSearchSink elasticSearchSink) {
+        // top pages are consumed by the pageIndex lookup and again by the output
+        JavaPairRDD<Integer, TopPagesHeap> topPages = persistencePlanner.persist(
+                topPagesHeaps.mapValues(TopPagesHeap::sortDescending), name);
+        List<Integer> pageIndexes = topPages.values()
+                .flatMap(heap -> {
+                    List<Integer> pageIndexesOfInterval = new ArrayList<>(heap.size());
+                    for (int rank = 0; rank < heap.size(); rank++) {
+                        pageIndexesOfInterval.add(heap.getPageIndex(rank));
+                    }
+                    return pageIndexesOfInterval.iterator();
+                })
+                .distinct()
+                .collect();
+        Broadcast<Map<Integer, PageViewKey>> pageKeys =
+                sc.broadcast(PageDictionary.lookup(pageDictionary, pageIndexes));
+        JavaPairRDD<String, String> topPagesJson = topPages.mapToPair(new JsonMapper(pageKeys));
+        if (bulkOutput) {
+            topPagesJson.sortByKey()
+                    .map(docIdAndJson -> SimpleJson.bulkIndexAction(docIdAndJson._1())
+                            + "\n" + docIdAndJson._2())
+                    .saveAsTextFile(outputPath);
+        } else {
+            topPagesJson.saveAsTextFile(outputPath);
+        }
+        if (elasticSearchSink != null) {
+            topPagesJson.foreachPartition(elasticSearchSink);
+        }
+        persistencePlanner.release(topPages);
+        pageKeys.destroy();
+    }
     
     static class DailyMapper implements Function2<InputSplit,
-            Iterator<Tuple2<LongWritable, Text>>, Iterator<Tuple2<String, Integer>>> {
+            Iterator<Tuple2<LongWritable, Text>>, Iterator<Tuple2<PageViewKey, Long>>> {
+        private final String[] domainCodes;
+        private final long preAggregationBudget; // in bytes; zero == no pre-aggregation
+
+        DailyMapper(String[] domainCodes, long preAggregationBudget) {
+            this.domainCodes = domainCodes;
+            this.preAggregationBudget = preAggregationBudget;
+        }
+
         @Override
-        public Iterator<Tuple2<String, Integer>> call(
+        public Iterator<Tuple2<PageViewKey, Long>> call(
                 InputSplit inputSplit, Iterator<Tuple2<LongWritable, Text>> keyValuePairs)
                 throws Exception {
 
-            // NOTE: Name of source file contains year-month-day string (yyyymmdd),
-            // which will be prepended to the first two tokenized strings in each 
-            // inputted record [domain code + webpage extension] to form outputtedKey
-            final String sourceFile = ((FileSplit) inputSplit).getPath().getName();
-            String yearMonthDay = sourceFile.substring(10, 18);
+            // NOTE: Key of each record is the hourly timestamp (yyyymmddhh) of its
+            // source file; the year-month-day (yyyymmdd) portion of it is combined
+            // with the first two tokens in each inputted record
+            // [domain code + webpage extension] to form outputtedKey
+            // Parsing is done directly upon the bytes of each Text; keys are
+            //   only constructed for records which pass validation
+            final PageViewRecordParser parser = new PageViewRecordParser(domainCodes);
+            if (preAggregationBudget > 0) {
+                return new PreAggregatingIterator(keyValuePairs, parser, preAggregationBudget);
+            }
             
-            return new Iterator<Tuple2<String, Integer>>() {
+            return new Iterator<Tuple2<PageViewKey, Long>>() {
+                private Tuple2<PageViewKey, Long> nextTuple = null;
+
                 @Override
                 public boolean hasNext() {
-                    return keyValuePairs.hasNext();
+                    while (nextTuple == null && keyValuePairs.hasNext()) {
+                        Tuple2<LongWritable, Text> keyValuePair = keyValuePairs.next();
+                        if (parser.parse(keyValuePair._2())) {
+                            int yearMonthDay = (int) (keyValuePair._1().get() / 100);
+                            nextTuple = new Tuple2<>(
+                                    parser.toPageViewKey(yearMonthDay), parser.getCountViews());
+                        } else if (parser.rejectionIsReportable()) {
+                            System.out.println(parser.describeRejection(
+                                    "file for hour <" + keyValuePair._1().get() + ">"));
+                        }
+                    }
+                    return nextTuple != null;
                 }
                 @Override
-                public Tuple2<String, Integer> next() {
-                    if (!keyValuePairs.hasNext()) {
+                public Tuple2<PageViewKey, Long> next() {
+                    if (!hasNext()) {
                         throw new NoSuchElementException(); // adhere to Iterator specification!
                     }
-                    String outputtedKey = null;
-                    Integer outputtedValue = 0;
-                    do {
-                        String rawDataEntry = keyValuePairs.next()._2().toString();
-
-                        // Raw data entry format is space-delimited:
-                        //   [domain code] + [webpage extension] + [pageviews] + [total response size]
-                        if (rawDataEntryIsValid(
-                                sourceFile, rawDataEntry, true)) {
-                            String[] hourlyRecordComponents = rawDataEntry.split(" ");
-                            String yearMonthDayDomainCode = yearMonthDay + hourlyRecordComponents[0];
-                            // insert JSON escape char for all double-quotes in URL extensions
-                            String webpageExtension = hourlyRecordComponents[1].replaceAll("\"", "\\\\\"");
-                            outputtedKey = yearMonthDayDomainCode + " " + webpageExtension;
-                            outputtedValue = Integer.parseInt(hourlyRecordComponents[2]);
-                        }
-                    } while (outputtedKey == null && keyValuePairs.hasNext());
-                    
-                    return new Tuple2<>(outputtedKey, outputtedValue);
+                    Tuple2<PageViewKey, Long> outputtedTuple = nextTuple;
+                    nextTuple = null;
+                    return outputtedTuple;
                 }
             };
        }
     }
-    
-    static class DiscardMapper
-            implements PairFunction<Tuple2<String, String>, String, String> {
-        int counter = 0;
-        String currentDayKey = "";
-        final int timestampLength;
-        
-        public DiscardMapper(int timestampLength) {
-            this.timestampLength = timestampLength;
+
+    /**
+     * Sums views per (day, page) within the partition in a PageViewCountMap;
+     * whenever the map reaches its memory budget (and at the end of the partition)
+     * its contents are emitted, one record per key, and the map is cleared.
+     */
+    static class PreAggregatingIterator implements Iterator<Tuple2<PageViewKey, Long>> {
+        private final Iterator<Tuple2<LongWritable, Text>> keyValuePairs;
+        private final PageViewRecordParser parser;
+        private final long preAggregationBudget;
+        private final PageViewCountMap countMap = new PageViewCountMap();
+        private boolean draining = false;
+        private boolean entryPending = false;
+
+        PreAggregatingIterator(Iterator<Tuple2<LongWritable, Text>> keyValuePairs,
+                PageViewRecordParser parser, long preAggregationBudget) {
+            this.keyValuePairs = keyValuePairs;
+            this.parser = parser;
+            this.preAggregationBudget = preAggregationBudget;
         }
-        
+
+        private void fillCountMap() {
+            while (keyValuePairs.hasNext() && countMap.estimatedBytes() < preAggregationBudget) {
+                Tuple2<LongWritable, Text> keyValuePair = keyValuePairs.next();
+                if (parser.parse(keyValuePair._2())) {
+                    countMap.add((int) (keyValuePair._1().get() / 100), parser.getBytes(), 0,
+                            parser.getPageIdLength(), parser.getCountViews());
+                } else if (parser.rejectionIsReportable()) {
+                    System.out.println(parser.describeRejection(
+                            "file for hour <" + keyValuePair._1().get() + ">"));
+                }
+            }
+            if (keyValuePairs.hasNext()) {
+                System.out.println("** Pre-aggregation budget reached; emitting "
+                        + countMap.size() + " entries");
+            }
+        }
+
         @Override
-        public Tuple2<String, String> call(Tuple2<String, String> keyValuePair)
-                throws Exception {
-            if (!currentDayKey.equals(keyValuePair._1().substring(0, timestampLength))) {
-                currentDayKey = keyValuePair._1().substring(0, timestampLength);
-                counter = 0;
+        public boolean hasNext() {
+            while (!entryPending) {
+                if (!draining) {
+                    // the map is empty here, so nothing remains once the input is exhausted
+                    if (!keyValuePairs.hasNext()) {
+                        return false;
+                    }
+                    fillCountMap();
+                    draining = true;
+                }
+                if (countMap.advance()) {
+                    entryPending = true;
+                } else {
+                    countMap.clear();
+                    draining = false;
+                }
             }
-            String outputtedValue;
-            if (++counter > POPULAR_PAGES_LIMIT) {
-                outputtedValue = DISCARD_INDICATOR + keyValuePair._2();
-            } else {
-                outputtedValue = keyValuePair._2();
+            return true;
+        }
+
+        @Override
+        public Tuple2<PageViewKey, Long> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException(); // adhere to Iterator specification!
             }
-            return new Tuple2(keyValuePair._1(), outputtedValue);
+            entryPending = false;
+            int keyOffset = countMap.getKeyOffset();
+            return new Tuple2<>(new PageViewKey(countMap.getDay(), Arrays.copyOfRange(
+                    countMap.getKeyBytes(), keyOffset, keyOffset + countMap.getKeyLength())),
+                    countMap.getCountViews());
+        }
+    }
+    
+    /**
+     * Fills a TopPagesHeap for each interval encountered in the partition.
+     */
+    static class TopPagesMapper implements PairFlatMapFunction<
+            Iterator<Tuple2<Long, Long>>, Integer, TopPagesHeap> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Iterator<Tuple2<Integer, TopPagesHeap>> call(
+                Iterator<Tuple2<Long, Long>> keyValuePairs) throws Exception {
+            Map<Integer, TopPagesHeap> heapsByInterval = new HashMap<>();
+            int currentInterval = -1;
+            TopPagesHeap currentHeap = null;
+            while (keyValuePairs.hasNext()) {
+                // key is (interval, pageIndex) packed into a long; value is views
+                Tuple2<Long, Long> keyValuePair = keyValuePairs.next();
+                int interval = PageDictionary.intervalOf(keyValuePair._1());
+                if (interval != currentInterval) {
+                    currentInterval = interval;
+                    currentHeap = heapsByInterval.computeIfAbsent(
+                            interval, newInterval -> new TopPagesHeap(POPULAR_PAGES_LIMIT));
+                }
+                currentHeap.offer(keyValuePair._2(), PageDictionary.pageIndexOf(keyValuePair._1()));
+            }
+            List<Tuple2<Integer, TopPagesHeap>> heaps = new ArrayList<>(heapsByInterval.size());
+            for (Map.Entry<Integer, TopPagesHeap> entry : heapsByInterval.entrySet()) {
+                heaps.add(new Tuple2<>(entry.getKey(), entry.getValue()));
+            }
+            return heaps.iterator();
         }
     }
     
     static class JsonMapper
-            implements PairFunction<Tuple2<String, Iterable<String>>, String, String> { 
+            implements PairFunction<Tuple2<Integer, TopPagesHeap>, String, String> { 
         
-        private TreeMap<String, String> itemMap;
+        private static final int JSON_BUFFER_INITIAL_CAPACITY = 128 * POPULAR_PAGES_LIMIT;
+        private final Broadcast<Map<Integer, PageViewKey>> pageKeys;
+        // reused for every interval of the partition (thus never serialized)
+        private transient SimpleJson.Writer jsonWriter;
+
+        JsonMapper(Broadcast<Map<Integer, PageViewKey>> pageKeys) {
+            this.pageKeys = pageKeys;
+        }
         
         @Override
-        public Tuple2<String, String> call(Tuple2<String, Iterable<String>> keyValuePair)
+        public Tuple2<String, String> call(Tuple2<Integer, TopPagesHeap> keyValuePair)
                 throws Exception {
-            // Assemble TreeMap with most popular items up to size limit of POPULAR_PAGES_LIMIT
-            //   Note that #groupByKey necessitates this because it can destroy the ordering from the sort
-            itemMap = new TreeMap<>();
-            long itemCount = 0L;
-            for (String value : keyValuePair._2()) {
-                ++itemCount;
-                // addEntry is passed (key == viewCount, value == complete record)
-                addEntry(value.substring(value.length() - 12), value);
+            if (jsonWriter == null) {
+                jsonWriter = new SimpleJson.Writer(JSON_BUFFER_INITIAL_CAPACITY);
             }
-            // System.out.println("#### Number of items originally passed to JSONMapper in Iterable: " + itemCount);
-            TreeMap<String, String> descendingMap = new TreeMap(Collections.reverseOrder());
-            descendingMap.putAll(itemMap);
-            
-            StringBuilder stringBuilder = new StringBuilder();
-            stringBuilder.append(SimpleJson.OBJECT_OPEN);
-            stringBuilder.append(SimpleJson.nameValuePair("interval", keyValuePair._1()));
-            stringBuilder.append(",");
-            stringBuilder.append("\"topPages\":");
-            stringBuilder.append(SimpleJson.ARRAY_OPEN);
-            boolean pastFirstValue = false;
-            int rank = 0;
-            for (Entry<String, String> entry : descendingMap.entrySet()) {
-                if (!pastFirstValue) {
-                    pastFirstValue = true;
-                } else {
-                    stringBuilder.append(",");
-                }
-                stringBuilder.append(SimpleJson.OBJECT_OPEN);
-                String pageId = entry.getValue()
-                        .substring(0, entry.getValue().length() - 12);
-                String[] tokens = entry.getValue().split(" ");
-                String pageUrlExtension = tokens[1].substring(0, tokens[1].length() - 12);
-                String viewsWithLeadingZeroes = tokens[1].substring(tokens[1].length() - 12);
-                String views = Integer.valueOf(viewsWithLeadingZeroes).toString();
-                
-                stringBuilder.append(SimpleJson.nameValuePair(
-                        "rank", String.valueOf(++rank)));
-                stringBuilder.append(",");
-                stringBuilder.append(SimpleJson.nameValuePair(
-                        "pageId", pageId));
-                stringBuilder.append(",");
-                stringBuilder.append(SimpleJson.nameValuePair(
-                        "url", "https://en.wikipedia.org/wiki/" + pageUrlExtension));
-                stringBuilder.append(",");
-                stringBuilder.append(SimpleJson.nameValuePair(
-                        "topic", pageUrlExtension.replaceAll("_", " ")));
-                stringBuilder.append(",");
-                stringBuilder.append(SimpleJson.nameValuePair(
-                        "views", views));
-                stringBuilder.append(SimpleJson.OBJECT_CLOSE);
+            String interval = keyValuePair._1().toString();
+            jsonWriter.reset().beginObject()
+                    .field("interval", interval)
+                    .name("topPages").beginArray();
+            // top pages are in descending order of views
+            TopPagesHeap topPages = keyValuePair._2();
+            for (int rank = 0; rank < topPages.size(); rank++) {
+                PageViewKey pageKey = pageKeys.value().get(topPages.getPageIndex(rank));
+                String domainCode = pageKey.getDomainCode();
+                String pageUrlExtension = pageKey.getPageTitle();
+                jsonWriter.beginObject()
+                        .field("rank", rank + 1)
+                        .name("pageId").beginString()
+                                .appendEscaped(domainCode).appendEscaped(" ")
+                                .appendEscaped(pageUrlExtension).endString()
+                        .name("url").beginString()
+                                .appendEscaped("https://").appendEscaped(domainCode)
+                                .appendEscaped(".wikipedia.org/wiki/")
+                                .appendEscaped(pageUrlExtension).endString()
+                        .name("topic").beginString()
+                                .appendEscaped(pageUrlExtension, '_', ' ').endString()
+                        .field("views", topPages.getViews(rank))
+                        .endObject();
             }
-            stringBuilder.append(SimpleJson.ARRAY_CLOSE);
-            stringBuilder.append(SimpleJson.OBJECT_CLOSE);
-            return new Tuple2(keyValuePair._1(), stringBuilder.toString());
-        }
-        
-        private void addEntry(String key, String value) {
-          if (itemMap.size() <  POPULAR_PAGES_LIMIT) {
-            itemMap.put(key, value);
-          } else {
-            if (key.compareTo(itemMap.firstEntry().getKey()) > 0) {
-              itemMap.pollFirstEntry(); // remove earliest entry
-              itemMap.put(key, value);
-            }
-          }
+            jsonWriter.endArray().endObject();
+            return new Tuple2<>(interval, jsonWriter.toString());
         }
     }
     
     static class WeeklyMapper
-             implements PairFunction<Tuple2<String, Integer>, String, Integer> {
+             implements PairFunction<Tuple2<Long, Long>, Long, Long> {
 
         @Override
-        public Tuple2<String, Integer> call(Tuple2<String, Integer> keyValuePair)
+        public Tuple2<Long, Long> call(Tuple2<Long, Long> keyValuePair)
                 throws Exception {
-            String[] dailyKeyComponents = keyValuePair._1().split(" ");
+            int yearMonthDay = PageDictionary.intervalOf(keyValuePair._1());
             // Note that the common key for all days in a given week is based on nearest preceding Sunday!!
             LocalDate localDate = LocalDate.of(
-                    Integer.parseInt(dailyKeyComponents[0].substring(0, 4)),
-                    Integer.parseInt(dailyKeyComponents[0].substring(4, 6)),
-                    Integer.parseInt(dailyKeyComponents[0].substring(6, 8)));
+                    yearMonthDay / 10000, (yearMonthDay / 100) % 100, yearMonthDay % 100);
             int sundayOffset = localDate.getDayOfWeek().getValue() % 7;
-            String nearestPrecedingSunday = localDate.minusDays(sundayOffset).toString();
-            String yearMonthSundayDomainCode = nearestPrecedingSunday.substring(0, 4) +
-                    nearestPrecedingSunday.substring(5, 7) +
-                    nearestPrecedingSunday.substring(8, 10) +
-                    dailyKeyComponents[0].substring(8);
+            LocalDate nearestPrecedingSunday = localDate.minusDays(sundayOffset);
+            int yearMonthSunday = nearestPrecedingSunday.getYear() * 10000
+                    + nearestPrecedingSunday.getMonthValue() * 100
+                    + nearestPrecedingSunday.getDayOfMonth();
 
-            // Note that dailyKeyComponents[1] is the webpage title (Domain Code + webpage title uniquely identifies webpage),
+            // Note that the pageIndex identifies the webpage (Domain Code + webpage title),
             //   and keyValuePair._2 is the daily count of views for the webpage.
-            return new Tuple2(yearMonthSundayDomainCode + " " + dailyKeyComponents[1], keyValuePair._2());
+            return new Tuple2<>(PageDictionary.packKey(yearMonthSunday,
+                    PageDictionary.pageIndexOf(keyValuePair._1())), keyValuePair._2());
         }
      }
     
+    /**
+     * Re-keys each (interval, pageIndex) of a partition to a coarser interval
+     * (via the passed mapper) and sums the views of each resulting key, within
+     * the partition. Valid only because the pageIndex alone determines the
+     * partition, and thus the mapper never moves a key to another partition.
+     */
+    static class RollupMapper
+            implements PairFlatMapFunction<Iterator<Tuple2<Long, Long>>, Long, Long> {
+        private static final long serialVersionUID = 1L;
+        private final PairFunction<Tuple2<Long, Long>, Long, Long> intervalMapper;
+
+        RollupMapper(PairFunction<Tuple2<Long, Long>, Long, Long> intervalMapper) {
+            this.intervalMapper = intervalMapper;
+        }
+
+        @Override
+        public Iterator<Tuple2<Long, Long>> call(
+                Iterator<Tuple2<Long, Long>> keyValuePairs) throws Exception {
+            Map<Long, long[]> sums = new HashMap<>();
+            while (keyValuePairs.hasNext()) {
+                Tuple2<Long, Long> rekeyedPair = intervalMapper.call(keyValuePairs.next());
+                long[] sum = sums.get(rekeyedPair._1());
+                if (sum == null) {
+                    sums.put(rekeyedPair._1(), new long[] {rekeyedPair._2()});
+                } else {
+                    sum[0] += rekeyedPair._2();
+                }
+            }
+            List<Tuple2<Long, Long>> rollup = new ArrayList<>(sums.size());
+            for (Map.Entry<Long, long[]> entry : sums.entrySet()) {
+                rollup.add(new Tuple2<>(entry.getKey(), entry.getValue()[0]));
+            }
+            return rollup.iterator();
+        }
+    }
+
     static class MonthlyMapper
-             implements PairFunction<Tuple2<String, Integer>, String, Integer> {
+             implements PairFunction<Tuple2<Long, Long>, Long, Long> {
 
         @Override
-        public Tuple2<String, Integer> call(Tuple2<String, Integer> keyValuePair)
+        public Tuple2<Long, Long> call(Tuple2<Long, Long> keyValuePair)
                 throws Exception {
-            String[] dailyKeyComponents = keyValuePair._1().split(" ");
-            String yearMonthDomainCode =
-                    dailyKeyComponents[0].substring(0, 6) + dailyKeyComponents[0].substring(8);
+            int yearMonth = PageDictionary.intervalOf(keyValuePair._1()) / 100;
 
-            // Note that keyComponents[1] is the webpage title 
-            //   (Domain Code + webpage title uniquely identifies webpage),
+            // Note that the pageIndex identifies the webpage 
+            //   (Domain Code + webpage title),
             //   and keyValuePair._2 is the daily count of views for the webpage.
-            return new Tuple2(yearMonthDomainCode + " " + dailyKeyComponents[1], keyValuePair._2());
+            return new Tuple2<>(PageDictionary.packKey(yearMonth,
+                    PageDictionary.pageIndexOf(keyValuePair._1())), keyValuePair._2());
         }
      }
     
     static class YearlyMapper
-             implements PairFunction<Tuple2<String, Integer>, String, Integer> {
+             implements PairFunction<Tuple2<Long, Long>, Long, Long> {
 
         @Override
-        public Tuple2<String, Integer> call(Tuple2<String, Integer> keyValuePair)
+        public Tuple2<Long, Long> call(Tuple2<Long, Long> keyValuePair)
                 throws Exception {
-            String[] monthlyKeyComponents = keyValuePair._1().split(" ");
-            String yearDomainCode = monthlyKeyComponents[0].substring(0, 4) +
-                    monthlyKeyComponents[0].substring(6);
+            int year = PageDictionary.intervalOf(keyValuePair._1()) / 100;
 
-            // Note that keyComponents[1] is the webpage title (DomainCode + webpage title uniquely identifies webpage),
+            // Note that the pageIndex identifies the webpage (DomainCode + webpage title),
             //   and keyValuePair._2 is the monthly count of views for the webpage.
-            return new Tuple2(yearDomainCode + " " + monthlyKeyComponents[1], keyValuePair._2());
+            return new Tuple2<>(PageDictionary.packKey(year,
+                    PageDictionary.pageIndexOf(keyValuePair._1())), keyValuePair._2());
         }
     }
     
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.Serializable;
+
+/**
+ * Bounded min-heap retaining the most popular pages of an interval, held in
+ * primitive arrays of views and pageIndexes. The least popular retained page
+ * is at the root, so each offered page is either rejected or swapped in with a
+ * single comparison plus O(log n) sift. Pages with equal views are ordered by
+ * pageIndex, so that results are deterministic.
+ * <p>
+ * Heaps are built within each partition and then merged across partitions,
+ * so only (number of intervals x number of partitions) small heaps are ever
+ * shuffled, rather than every page.
+ *
+ * @author Daniel Vimont
+ */
+public class TopPagesHeap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long[] views;
+    private final int[] pageIndexes;
+    private int size;
+
+    /**
+     * @param capacity maximum count of pages retained
+     */
+    public TopPagesHeap(int capacity) {
+        views = new long[capacity];
+        pageIndexes = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param pageViews views of the page
+     * @param pageIndex pageIndex of the page
+     * @return this heap
+     */
+    public TopPagesHeap offer(long pageViews, int pageIndex) {
+        if (size < views.length) {
+            views[size] = pageViews;
+            pageIndexes[size] = pageIndex;
+            siftUp(size++);
+        } else if (size > 0 && isLess(views[0], pageIndexes[0], pageViews, pageIndex)) {
+            views[0] = pageViews;
+            pageIndexes[0] = pageIndex;
+            siftDown(0);
+        }
+        return this;
+    }
+
+    /**
+     * @param otherHeap heap whose pages are to be offered to this heap
+     * @return this heap
+     */
+    public TopPagesHeap merge(TopPagesHeap otherHeap) {
+        for (int i = 0; i < otherHeap.size; i++) {
+            offer(otherHeap.views[i], otherHeap.pageIndexes[i]);
+        }
+        return this;
+    }
+
+    private static boolean isLess(long views1, int pageIndex1, long views2, int pageIndex2) {
+        return views1 < views2 || (views1 == views2 && pageIndex1 > pageIndex2);
+    }
+
+    private boolean isLess(int i, int j) {
+        return isLess(views[i], pageIndexes[i], views[j], pageIndexes[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isLess(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && isLess(left, smallest)) {
+                smallest = left;
+            }
+            if (right < size && isLess(right, smallest)) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long tempViews = views[i];
+        views[i] = views[j];
+        views[j] = tempViews;
+        int tempPageIndex = pageIndexes[i];
+        pageIndexes[i] = pageIndexes[j];
+        pageIndexes[j] = tempPageIndex;
+    }
+
+    /**
+     * Reorders the retained pages into descending order of popularity (rank order);
+     * once sorted, the heap must not be offered further pages.
+     *
+     * @return this heap
+     */
+    public TopPagesHeap sortDescending() {
+        // heapsort: repeatedly move the least popular remaining page to the end
+        int heapSize = size;
+        while (size > 1) {
+            swap(0, --size);
+            siftDown(0);
+        }
+        size = heapSize;
+        return this;
+    }
+
+    /**
+     * @param rank zero-based position
+     * @return views of the page at the position
+     */
+    public long getViews(int rank) {
+        return views[rank];
+    }
+
+    /**
+     * @param rank zero-based position
+     * @return pageIndex of the page at the position
+     */
+    public int getPageIndex(int rank) {
+        return pageIndexes[rank];
+    }
+}
@@ -15,31 +15,45 @@
  */
 package org.commonvox.bigdatademos;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
 
 /**
  *
@@ -48,9 +62,6 @@ import org.jsoup.select.Elements;
 public class WikimediaFileDownloader {
     public static final String WIKIMEDIA_PAGEVIEW_FILES_DIRECTORY_URL =
             "https://dumps.wikimedia.org/other/pageviews/";
-    public static final String DIRECTORY_2015_EXTENSION = "2015/";
-    public static final String DIRECTORY_2016_EXTENSION = "2016/";
-    public static final String DIRECTORY_2017_EXTENSION = "2017/";
     public static final String WORKSPACE_PATH_PREFIX_STRING = "./raw_files/";
 
     public static final String FIXED_SAMPLE = "fixed_sample";
@@ -70,9 +81,57 @@ public class WikimediaFileDownloader {
             "https://dumps.wikimedia.org/other/pageviews/2016/2016-09/pageviews-20160929-140000.gz",
         };
     public static final String HDFS_RAW_DATA_DIRECTORY = "/test/raw_files/";
+    // optional settings, passed as system properties (e.g., -Dwikitrends.download.threads=8)
+    public static final String THREADS_PROPERTY = "wikitrends.download.threads";
+    public static final String MAX_CONNECTIONS_PER_HOST_PROPERTY =
+            "wikitrends.download.maxConnectionsPerHost";
+    public static final String PROGRESS_INTERVAL_PROPERTY =
+            "wikitrends.download.progressIntervalSeconds";
+    public static final String MAX_ATTEMPTS_PROPERTY = "wikitrends.download.maxAttempts";
+    // cap on the aggregate download rate of all threads (default 0: no cap)
+    public static final String MAX_BYTES_PER_SECOND_PROPERTY = "wikitrends.download.maxBytesPerSecond";
+    // directory in any Hadoop FileSystem into which files are streamed, e.g.
+    //   "hdfs://namenode:9000/nodelete/pageviews.hourly/{yyyy}/{mm}/", in which {yyyy}
+    //   and {mm} are replaced by the year and month of each file (default is ./raw_files/)
+    public static final String TARGET_PROPERTY = "wikitrends.download.target";
+    // range of dates of files downloaded, each as yyyy, yyyymm, or yyyymmdd (inclusive)
+    public static final String FROM_DATE_PROPERTY = "wikitrends.download.from";
+    public static final String TO_DATE_PROPERTY = "wikitrends.download.to";
+    public static final String MANIFEST_PROPERTY = "wikitrends.download.manifest";
+    public static final String CRAWLER_THREADS_PROPERTY = "wikitrends.download.crawlerThreads";
+    // if set (e.g., "en"), files are transcoded as they are downloaded (see PageviewFileTranscoder)
+    public static final String DOMAIN_CODES_PROPERTY = "wikitrends.download.domainCodes";
+    public static final String CODEC_PROPERTY = "wikitrends.download.codec";
+    // timeouts for establishing a connection, and for a connection idle during a request
+    public static final String CONNECT_TIMEOUT_PROPERTY = "wikitrends.download.connectTimeoutMillis";
+    public static final String READ_TIMEOUT_PROPERTY = "wikitrends.download.readTimeoutMillis";
+    // JDK's limit on idle keep-alive connections cached per destination
+    private static final String JDK_KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
+    private static final String DEFAULT_MANIFEST_PATH = "./pageview_files.manifest";
+    private static final String YEAR_PLACEHOLDER = "{yyyy}";
+    private static final String MONTH_PLACEHOLDER = "{mm}";
+    private static final String MD5SUMS_FILE_NAME = "md5sums.txt";
+    // partial files and markers are hidden (as FileInputFormat ignores names starting
+    //   with "."), so that a Spark job may read the target directory as-is
+    private static final String HIDDEN_FILE_PREFIX = ".";
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final String VERIFIED_MARKER_SUFFIX = ".md5";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    // room for the count of connections to each host to grow from 1 (see
+    //   AdaptiveConcurrencyController); all pageview files are on a single host
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int DEFAULT_THREADS = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private static final Map<String, Map<String, String>> PUBLISHED_MD5S_BY_DIRECTORY =
+            new ConcurrentHashMap<>();
+    // (shared by all connections, so that keep-alive connections to https hosts are reused)
+    private static SSLSocketFactory trustingSslSocketFactory;
+    private static final HostnameVerifier TRUSTING_HOSTNAME_VERIFIER =
+            (String paramString, SSLSession paramSSLSession) -> true;
 
     public static void main( String[] args ) throws Exception {
-        new File("/raw_files").mkdirs();
         String filePath = null;
         int processingLimit = 0;
         if (args.length > 0) {
@@ -89,119 +148,581 @@ public class WikimediaFileDownloader {
     }    
     
     public static void downloadRawDataFiles(String urlString, int processingLimit)
-            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+            throws NoSuchAlgorithmException, KeyManagementException, IOException,
+            InterruptedException {
         if (urlString == null) {
             urlString = WIKIMEDIA_PAGEVIEW_FILES_DIRECTORY_URL;
         }
+        // HttpURLConnection keeps idle connections alive for reuse, but caches no
+        //   more than http.maxConnections (default 5) per host; this must be set
+        //   before the first connection is opened
+        if (System.getProperty(JDK_KEEP_ALIVE_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(JDK_KEEP_ALIVE_CONNECTIONS_PROPERTY, String.valueOf(Math.max(5,
+                    Math.max(Integer.getInteger(MAX_CONNECTIONS_PER_HOST_PROPERTY,
+                                    DEFAULT_MAX_CONNECTIONS_PER_HOST),
+                            Integer.getInteger(CRAWLER_THREADS_PROPERTY, 4)))));
+        }
         TreeSet<String> pageviewFileUrlStrings;
         if (urlString.equals(FIXED_SAMPLE)) {
             System.out.println("** Raw data files downloaded based upon fixed list!");
             pageviewFileUrlStrings = new TreeSet<>();
             pageviewFileUrlStrings.addAll(Arrays.asList(FIXED_SAMPLE_FILES));
         } else {
-            System.out.println("** Recursively processing WikiMedia index pages to derive "
-                    + "list of downloadable raw data files!");
-            pageviewFileUrlStrings = getPageviewFileUrlStrings(urlString);
+            String fromDate = System.getProperty(FROM_DATE_PROPERTY);
+            String toDate = System.getProperty(TO_DATE_PROPERTY);
+            System.out.println("** Processing WikiMedia index pages (and manifest of previous "
+                    + "runs) to derive list of downloadable raw data files dated from "
+                    + (fromDate == null ? "(any)" : fromDate) + " to "
+                    + (toDate == null ? "(any)" : toDate) + "!");
+            pageviewFileUrlStrings = new PageviewFileCrawler(
+                    Paths.get(System.getProperty(MANIFEST_PROPERTY, DEFAULT_MANIFEST_PATH)),
+                    Integer.getInteger(CRAWLER_THREADS_PROPERTY, 4),
+                    Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS))
+                    .crawl(urlString, fromDate, toDate);
         }
         
         System.out.println("=================");
         System.out.println("Number of pageview files on remote server == " + pageviewFileUrlStrings.size());
         System.out.println("** Commencing remote copy of WikiMedia raw data files with processingLimit == " + processingLimit);
-        int processingCount = 0;
+        // the processing limit applies to each month
+        List<String> urlStringsToCopy = new ArrayList<>();
+        Map<String, Integer> fileCountsByMonth = new HashMap<>();
         for (String pageviewFileUrlString : pageviewFileUrlStrings) {
-            System.out.println("Copying file from URL: " + pageviewFileUrlString);
-            Path newLocalFile = copyRemoteFile(pageviewFileUrlString);
-            if (processingLimit > 0 && ++processingCount >= processingLimit) {
-                break;
+            int fileCount = fileCountsByMonth.merge(
+                    getFileDate(pageviewFileUrlString).substring(0, 6), 1, Integer::sum);
+            if (processingLimit <= 0 || fileCount <= processingLimit) {
+                urlStringsToCopy.add(pageviewFileUrlString);
             }
         }
+        copyRemoteFiles(urlStringsToCopy);
     }
 
     /**
-     * Note that the directory pages for Wikimedia pageview data files are
-     * indexed in a hierarchical file system of html pages, which this method
-     * recursively traverses until it finds the links to all pageview files.
-     *
-     * @param indexPageUrlString
-     * @return Set of URL Strings of all pageview statistics files at WikiMedia
-     *
-     * @throws java.security.NoSuchAlgorithmException
-     * @throws java.security.KeyManagementException
-     * @throws java.io.IOException
+     * Copies files with a pool of worker threads (four by default), with
+     * the count of connections open to each host adapted to the host's
+     * throughput and throttling (see {@link AdaptiveConcurrencyController}), up
+     * to a maximum, and with progress reported at regular intervals. Each file is streamed
+     * directly into the target directory, in whatever Hadoop FileSystem it
+     * resides, without being staged on local disk.
      */
-    private static TreeSet<String> getPageviewFileUrlStrings(String indexPageUrlString)
-            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+    static void copyRemoteFiles(List<String> urlStrings)
+            throws IOException, InterruptedException {
+        String targetDirectoryPattern = getTargetDirectoryPattern();
+        FileSystem fileSystem = getTargetFileSystem(targetDirectoryPattern);
+        int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+        int maxConnectionsPerHost = Integer.getInteger(MAX_CONNECTIONS_PER_HOST_PROPERTY,
+                DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        int progressIntervalSeconds = Integer.getInteger(PROGRESS_INTERVAL_PROPERTY, 10);
+        String domainCodes = System.getProperty(DOMAIN_CODES_PROPERTY, "").trim();
+        PageviewFileTranscoder transcoder = domainCodes.isEmpty() ? null
+                : new PageviewFileTranscoder(domainCodes.split(","),
+                        System.getProperty(CODEC_PROPERTY, "bzip2"));
+        long maxBytesPerSecond = Long.getLong(MAX_BYTES_PER_SECOND_PROPERTY, 0L);
+        System.out.println("** Copying " + urlStrings.size() + " files into "
+                + targetDirectoryPattern + " with " + threads
+                + " worker threads, and at most " + maxConnectionsPerHost
+                + " connections per host"
+                + (maxBytesPerSecond <= 0 ? "" : " and " + maxBytesPerSecond + " bytes/s in all")
+                + (transcoder == null ? "" : "; keeping only lines of domain codes <"
+                        + domainCodes + ">, recompressed with codec <"
+                        + System.getProperty(CODEC_PROPERTY, "bzip2") + ">"));
+        DownloadProgress progress = new DownloadProgress(urlStrings.size(), maxBytesPerSecond);
+        ScheduledExecutorService progressReporter = Executors.newSingleThreadScheduledExecutor();
+        progressReporter.scheduleAtFixedRate(progress::report,
+                progressIntervalSeconds, progressIntervalSeconds, TimeUnit.SECONDS);
+        Map<String, AdaptiveConcurrencyController> controllersByHost = new ConcurrentHashMap<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (String urlString : urlStrings) {
+            workers.submit(() -> {
+                try {
+                    // a malformed URL fails its file alone, like any other failure
+                    AdaptiveConcurrencyController controller = controllersByHost.computeIfAbsent(
+                            new URL(urlString).getHost(),
+                            host -> new AdaptiveConcurrencyController(host, maxConnectionsPerHost));
+                    System.out.println("Copying file from URL: " + urlString);
+                    copyRemoteFile(urlString, fileSystem,
+                            getTargetDirectory(targetDirectoryPattern, urlString),
+                            transcoder, controller, progress);
+                    progress.fileCompleted();
+                } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                    progress.fileFailed();
+                    System.out.println("**** Failed to copy file from URL: " + urlString
+                            + " -- " + ex);
+                }
+                return null;
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        progressReporter.shutdownNow();
+        progress.report();
+        if (progress.getFailedFiles() > 0) {
+            throw new IOException(progress.getFailedFiles() + " of " + urlStrings.size()
+                    + " files failed to be copied");
+        }
+    }
 
-        TreeSet<String> pageviewFileUrlStrings = new TreeSet<>();
+    private static String getTargetDirectoryPattern() {
+        String target = System.getProperty(TARGET_PROPERTY);
+        if (target == null || target.trim().isEmpty()) {
+            return new File(WORKSPACE_PATH_PREFIX_STRING).getAbsoluteFile().toURI().toString();
+        }
+        return target.trim();
+    }
 
-        String indexPageContent = getIndexPageContent(indexPageUrlString);
-        // (extract all 'a' tags with 'href' attribute)
-        Elements links = Jsoup.parse(indexPageContent).select("a[href]"); 
-        for (Element link : links) {
-            String href = link.attr("href");
-            if (href.matches("201\\d.*/")) {
-                System.out.println(indexPageUrlString + href);
-                pageviewFileUrlStrings.addAll(getPageviewFileUrlStrings(indexPageUrlString + href));
-            } else if (href.matches("pageviews-201.*\\.gz")) {
-                pageviewFileUrlStrings.add(indexPageUrlString + href);
-            }
+    private static Path getTargetDirectory(String targetDirectoryPattern, String urlString) {
+        String fileDate = getFileDate(urlString);
+        return new Path(targetDirectoryPattern.replace(YEAR_PLACEHOLDER, fileDate.substring(0, 4))
+                .replace(MONTH_PLACEHOLDER, fileDate.substring(4, 6)));
+    }
+
+    /**
+     * @return FileSystem of the target directories; for the local file system, the
+     *   raw file system is returned, which writes no ".crc" checksum files and
+     *   (unlike the checksummed one) supports append
+     */
+    private static FileSystem getTargetFileSystem(String targetDirectoryPattern)
+            throws IOException {
+        int placeholderIndex = targetDirectoryPattern.indexOf('{');
+        Path targetRoot = new Path(placeholderIndex < 0 ? targetDirectoryPattern
+                : targetDirectoryPattern.substring(0, placeholderIndex));
+        FileSystem fileSystem = targetRoot.getFileSystem(new Configuration());
+        if (fileSystem instanceof LocalFileSystem) {
+            return ((LocalFileSystem) fileSystem).getRawFileSystem();
         }
-        return pageviewFileUrlStrings;
+        return fileSystem;
     }
 
-    private static String getIndexPageContent(String indexPageUrlString)
+    /**
+     * @return yyyymmdd date of the file, e.g. "20160701" for pageviews-20160701-110000.gz
+     */
+    private static String getFileDate(String urlString) {
+        String fileName = urlString.substring(urlString.lastIndexOf('/') + 1);
+        return fileName.substring(fileName.indexOf('-') + 1, fileName.indexOf('-') + 9);
+    }
+
+    static String getIndexPageContent(String indexPageUrlString)
             throws MalformedURLException, NoSuchAlgorithmException, KeyManagementException, IOException {
-        HttpsURLConnection conn = getConnectionToServerWithBadSslCertificate(new URL(indexPageUrlString));
-        try ( BufferedReader buffer = new BufferedReader(new InputStreamReader(conn.getInputStream())) ) {
-            return buffer.lines().collect(Collectors.joining("\n"));
+        HttpURLConnection conn = getConnectionToServerWithBadSslCertificate(new URL(indexPageUrlString));
+        if (conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            discardResponse(conn);
         }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try ( InputStream inputStream = conn.getInputStream() ) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        }
+        verifyContentLength(conn, content.size());
+        return new String(content.toByteArray(), UTF_8);
     }
 
-    private static Path copyRemoteFile(String urlString)
-            throws IOException, NoSuchAlgorithmException, KeyManagementException {
+    /**
+     * HttpURLConnection signals no error when a server closes the connection
+     * before sending the full Content-Length, so this must be checked explicitly.
+     */
+    private static void verifyContentLength(HttpURLConnection conn, long receivedLength)
+            throws IOException {
+        long contentLength = conn.getContentLengthLong();
+        if (contentLength >= 0 && receivedLength != contentLength) {
+            throw new IOException("Connection to URL: " + conn.getURL() + " closed after "
+                    + receivedLength + " of " + contentLength + " bytes");
+        }
+    }
+
+    /**
+     * Copies the file unless it is already present and verified. Bytes are
+     * streamed into a hidden ".part" file, while their MD5 digest is computed;
+     * if an attempt fails midway, the next attempt resumes from the end of the
+     * ".part" file via a Range request (where the FileSystem supports append;
+     * elsewhere, e.g. S3A, the file is copied again from the start). Once
+     * complete, the digest is checked against the one published in the
+     * md5sums.txt of the file's directory (if any), the ".part" file is renamed,
+     * and a hidden ".md5" marker file is written to record that the file has
+     * been verified.
+     * <p>
+     * If a transcoder is passed, the file is instead transcoded as it streams in
+     * (and, being transcoded, cannot be resumed midway); the MD5 digest is still
+     * computed over the source bytes, and so is still verified.
+     * <p>
+     * Each attempt waits for a connection permitted by the controller of the
+     * host, and each failed attempt is reported to the controller and followed
+     * by a jittered, exponentially increasing delay (or by the delay requested
+     * by the server via Retry-After, if longer).
+     */
+    private static Path copyRemoteFile(String urlString, FileSystem fileSystem,
+            Path targetDirectory, PageviewFileTranscoder transcoder,
+            AdaptiveConcurrencyController controller, DownloadProgress progress)
+            throws IOException, NoSuchAlgorithmException, KeyManagementException,
+            InterruptedException {
         URL url = new URL(urlString);
-        Path targetPath = Paths.get(
-                WORKSPACE_PATH_PREFIX_STRING + Paths.get(urlString).getFileName().toString());
+        String fileName = Paths.get(url.getPath()).getFileName().toString();
+        if (transcoder != null) {
+            fileName = transcoder.getTargetFileName(fileName);
+        }
+        Path targetPath = new Path(targetDirectory, fileName);
+        Path partialPath =
+                new Path(targetDirectory, HIDDEN_FILE_PREFIX + fileName + PARTIAL_FILE_SUFFIX);
+        Path markerPath =
+                new Path(targetDirectory, HIDDEN_FILE_PREFIX + fileName + VERIFIED_MARKER_SUFFIX);
+        String publishedMd5 = getPublishedMd5(urlString);
 
-        HttpsURLConnection conn = getConnectionToServerWithBadSslCertificate(url);
-        try ( InputStream inputStream = conn.getInputStream() )
-        {
-            Files.copy(inputStream, targetPath, REPLACE_EXISTING);
+        fileSystem.mkdirs(targetDirectory);
+        if (fileSystem.exists(targetPath) && fileSystem.exists(markerPath)
+                && (publishedMd5 == null
+                        || publishedMd5.equals(readMarker(fileSystem, markerPath)))) {
+            fileSystem.delete(partialPath, false); // (stale, if present)
+            progress.fileSkipped();
+            return targetPath;
+        }
+        int maxAttempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                String md5;
+                controller.acquire();
+                try {
+                    md5 = transcoder == null
+                            ? copyRemoteFileResumably(url, fileSystem, partialPath,
+                                    controller, progress)
+                            : copyRemoteFileTranscoded(url, fileSystem, partialPath, transcoder,
+                                    controller, progress);
+                } finally {
+                    controller.release();
+                }
+                if (publishedMd5 != null && !publishedMd5.equals(md5)) {
+                    fileSystem.delete(partialPath, false);
+                    throw new IOException("MD5 digest <" + md5 + "> of file copied from URL: "
+                            + urlString + " does not match published digest <" + publishedMd5 + ">");
+                }
+                controller.onSuccess();
+                // (rename does not replace an existing file in all FileSystems)
+                fileSystem.delete(targetPath, false);
+                if (!fileSystem.rename(partialPath, targetPath)) {
+                    throw new IOException("Failed to rename " + partialPath + " to " + targetPath);
+                }
+                try (OutputStream outputStream = fileSystem.create(markerPath, true)) {
+                    outputStream.write(md5.getBytes(UTF_8));
+                }
+                return targetPath;
+            } catch (IOException ex) {
+                controller.onFailure(ex.toString());
+                if (attempt >= maxAttempts) {
+                    throw ex;
+                }
+                long backoffMillis = AdaptiveConcurrencyController.getBackoffMillis(attempt,
+                        ex instanceof ServerThrottlingException
+                                ? ((ServerThrottlingException) ex).retryAfterMillis : 0);
+                System.out.println("**** Attempt " + attempt + " to copy file from URL: "
+                        + urlString + " failed (" + ex + "); retrying in " + backoffMillis + " ms");
+                Thread.sleep(backoffMillis);
+            }
         }
-        return targetPath;
     }
 
-    private static HttpsURLConnection getConnectionToServerWithBadSslCertificate(URL url)
-            throws NoSuchAlgorithmException, KeyManagementException,
-            MalformedURLException, IOException {
+    /**
+     * Opens a connection and awaits the response headers, reporting the latency
+     * of the response to the controller.
+     *
+     * @throws ServerThrottlingException if the server responds with status 429 or 503
+     */
+    private static HttpURLConnection getResponse(URL url, long rangeStart,
+            AdaptiveConcurrencyController controller)
+            throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        long startNanos = System.nanoTime();
+        HttpURLConnection conn = getConnectionToServerWithBadSslCertificate(url, rangeStart);
+        int responseCode = conn.getResponseCode();
+        controller.onResponse(System.nanoTime() - startNanos);
+        if (responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+            long retryAfterMillis = 0;
+            try {
+                retryAfterMillis = Long.parseLong(conn.getHeaderField("Retry-After").trim()) * 1000;
+            } catch (NullPointerException | NumberFormatException ex) {
+                // (absent, or an HTTP-date, which is not honored)
+            }
+            discardResponse(conn);
+            throw new ServerThrottlingException(url, responseCode, retryAfterMillis);
+        }
+        return conn;
+    }
 
-        // Dummy TrustManager to bypass expired SSL certificate (Hey kids, don't try this at home!!)
-        X509TrustManager tm = new X509TrustManager() {
-            @Override
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+    private static String readMarker(FileSystem fileSystem, Path markerPath) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream inputStream = fileSystem.open(markerPath)) {
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        }
+        return new String(content.toByteArray(), UTF_8).trim();
+    }
+
+    /**
+     * @return hex MD5 digest of the complete ".part" file
+     */
+    private static String copyRemoteFileResumably(URL url, FileSystem fileSystem,
+            Path partialPath, AdaptiveConcurrencyController controller, DownloadProgress progress)
+            throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        long existingLength = fileSystem.exists(partialPath)
+                ? fileSystem.getFileStatus(partialPath).getLen() : 0;
+        OutputStream outputStream = null;
+        if (existingLength > 0) {
+            // digest of previously copied bytes is recomputed locally, not re-fetched
+            try (InputStream inputStream = new DigestInputStream(
+                    fileSystem.open(partialPath), md5)) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                while (inputStream.read(buffer) != -1) { }
             }
-            @Override
-            public void checkServerTrusted(X509Certificate[] paramArrayOfX509Certificate, String paramString) {
-                // do nothing
+            try {
+                outputStream = fileSystem.append(partialPath);
+            } catch (IOException | UnsupportedOperationException ex) {
+                System.out.println("**** Unable to append to " + partialPath + " (" + ex
+                        + "); copying file from the start");
+                md5.reset();
+                existingLength = 0;
             }
-            @Override
-            public void checkClientTrusted(X509Certificate[] paramArrayOfX509Certificate, String paramString) {
-                // do nothing
+        }
+        try {
+            HttpURLConnection conn = getResponse(url, existingLength, controller);
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                // the ".part" file is complete, if its length is that of the remote file
+                long remoteLength = getCompleteLength(conn);
+                discardResponse(conn);
+                if (remoteLength != existingLength) {
+                    if (outputStream != null) {
+                        outputStream.close();
+                        outputStream = null;
+                    }
+                    fileSystem.delete(partialPath, false);
+                    throw new IOException("Length " + existingLength + " of " + partialPath
+                            + " does not match length " + (remoteLength < 0 ? "(unknown)"
+                                    : String.valueOf(remoteLength))
+                            + " of file at URL: " + url + "; file is to be copied from the start");
+                }
+                return toHex(md5.digest());
             }
-        };
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // the server sent the entire file (no range was requested, or it was ignored)
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+                md5.reset();
+                outputStream = fileSystem.create(partialPath, true);
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL || outputStream == null) {
+                // (the ".part" file, and so the progress of earlier attempts, is kept)
+                discardResponse(conn);
+                throw new IOException("Unexpected response <" + responseCode + " "
+                        + conn.getResponseMessage() + "> from URL: " + url);
+            }
+            try (InputStream inputStream = new DigestInputStream(
+                    progress.countingStream(controller.meter(conn.getInputStream())), md5)) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long receivedLength = 0;
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                    receivedLength += count;
+                }
+                // (a ".part" file left incomplete is resumed by the next attempt)
+                verifyContentLength(conn, receivedLength);
+            }
+        } finally {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+        return toHex(md5.digest());
+    }
+
+    /**
+     * @return complete length of the remote file, as given by the Content-Range
+     *   header (e.g., "bytes *&#47;12345") of a 416 response, or -1 if not given
+     */
+    private static long getCompleteLength(HttpURLConnection conn) {
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+            try {
+                return Long.parseLong(
+                        contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+            } catch (NumberFormatException ex) {
+                // (e.g., "bytes */*")
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return hex MD5 digest of the source file (not of the transcoded ".part" file)
+     */
+    private static String copyRemoteFileTranscoded(URL url, FileSystem fileSystem,
+            Path partialPath, PageviewFileTranscoder transcoder,
+            AdaptiveConcurrencyController controller, DownloadProgress progress)
+            throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        HttpURLConnection conn = getResponse(url, 0, controller);
+        // (a truncated body fails decompression, so its length need not be checked)
+        try ( InputStream inputStream = new DigestInputStream(
+                    progress.countingStream(controller.meter(conn.getInputStream())), md5);
+              OutputStream outputStream = fileSystem.create(partialPath, true) )
+        {
+            long keptLines = transcoder.transcode(inputStream, outputStream);
+            System.out.println("Transcoded file from URL: " + url + " (" + keptLines
+                    + " lines kept)");
+        }
+        return toHex(md5.digest());
+    }
+
+    /**
+     * @return MD5 digest published for the file in the md5sums.txt of its
+     *   directory, or null if none is available
+     */
+    private static String getPublishedMd5(String urlString) {
+        String directoryUrlString = urlString.substring(0, urlString.lastIndexOf('/') + 1);
+        Map<String, String> publishedMd5s = PUBLISHED_MD5S_BY_DIRECTORY.computeIfAbsent(
+                directoryUrlString, WikimediaFileDownloader::getPublishedMd5s);
+        return publishedMd5s.get(urlString.substring(directoryUrlString.length()));
+    }
+
+    private static Map<String, String> getPublishedMd5s(String directoryUrlString) {
+        Map<String, String> publishedMd5s = new HashMap<>();
+        String md5sumsContent = null;
+        int maxAttempts = Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS);
+        for (int attempt = 1; md5sumsContent == null; attempt++) {
+            try {
+                md5sumsContent = getIndexPageContent(directoryUrlString + MD5SUMS_FILE_NAME);
+            } catch (FileNotFoundException ex) {
+                break;
+            } catch (IOException | GeneralSecurityException ex) {
+                if (attempt >= maxAttempts) {
+                    break;
+                }
+            }
+        }
+        if (md5sumsContent == null) {
+            System.out.println("**** No MD5 digests available for files in: "
+                    + directoryUrlString + "; files will not be verified");
+            return publishedMd5s;
+        }
+        // each line is: <hex md5 digest> <whitespace> <file name>
+        for (String line : md5sumsContent.split("\n")) {
+            String[] digestAndFileName = line.trim().split("\\s+");
+            if (digestAndFileName.length == 2) {
+                publishedMd5s.put(digestAndFileName[1], digestAndFileName[0].toLowerCase());
+            }
+        }
+        return publishedMd5s;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 
-        SSLContext ctx = SSLContext.getInstance("TLS");
-        ctx.init(null, new TrustManager[] { tm }, null);
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        // We don't want to bypass SSL validation for all processes in JVM session,
-        //   so get new SSL socket factory just for this instance!!
-        conn.setSSLSocketFactory(ctx.getSocketFactory());
-        conn.setHostnameVerifier((String paramString, SSLSession paramSSLSession) -> true);
+    private static HttpURLConnection getConnectionToServerWithBadSslCertificate(URL url)
+            throws NoSuchAlgorithmException, KeyManagementException,
+            MalformedURLException, IOException {
+        return getConnectionToServerWithBadSslCertificate(url, 0);
+    }
+
+    /**
+     * @param rangeStart if greater than zero, only bytes from this offset onward are requested
+     */
+    private static HttpURLConnection getConnectionToServerWithBadSslCertificate(URL url,
+            long rangeStart) throws NoSuchAlgorithmException, KeyManagementException,
+            MalformedURLException, IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        // plain http is accepted (e.g., for a local stand-in server)
+        if (conn instanceof HttpsURLConnection) {
+            // We don't want to bypass SSL validation for all processes in JVM session,
+            //   so set SSL socket factory just for these instances!!
+            ((HttpsURLConnection) conn).setSSLSocketFactory(getTrustingSslSocketFactory());
+            ((HttpsURLConnection) conn).setHostnameVerifier(TRUSTING_HOSTNAME_VERIFIER);
+        }
+        conn.setConnectTimeout(Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, 30000));
+        conn.setReadTimeout(Integer.getInteger(READ_TIMEOUT_PROPERTY, 60000));
+        if (rangeStart > 0) {
+            conn.setRequestProperty("Range", "bytes=" + rangeStart + "-");
+        }
         conn.connect();
         return conn;
     }
 
+    /**
+     * The SSL context is initialized (and its session cache populated) once, rather
+     * than for every connection; and as HttpURLConnection reuses a keep-alive
+     * connection only for the same SSL socket factory, a single factory also
+     * permits connections to be reused across requests.
+     */
+    private static synchronized SSLSocketFactory getTrustingSslSocketFactory()
+            throws NoSuchAlgorithmException, KeyManagementException {
+        if (trustingSslSocketFactory == null) {
+            // Dummy TrustManager to bypass expired SSL certificate (Hey kids, don't try this at home!!)
+            X509TrustManager tm = new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+                @Override
+                public void checkServerTrusted(X509Certificate[] paramArrayOfX509Certificate, String paramString) {
+                    // do nothing
+                }
+                @Override
+                public void checkClientTrusted(X509Certificate[] paramArrayOfX509Certificate, String paramString) {
+                    // do nothing
+                }
+            };
+
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, new TrustManager[] { tm }, null);
+            trustingSslSocketFactory = ctx.getSocketFactory();
+        }
+        return trustingSslSocketFactory;
+    }
+
+    /**
+     * Reads and closes the (e.g. error) body of a response which is not otherwise
+     * read, so that the connection is returned to the keep-alive cache rather
+     * than closed.
+     */
+    private static void discardResponse(HttpURLConnection conn) {
+        try {
+            InputStream inputStream = conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? conn.getErrorStream() : conn.getInputStream();
+            if (inputStream == null) {
+                return; // (no body)
+            }
+            try (InputStream body = inputStream) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                while (body.read(buffer) != -1) { }
+            }
+        } catch (IOException ex) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Signals that the server refused a request for being too frequent (429) or
+     * for being temporarily unable to serve it (503).
+     */
+    static class ServerThrottlingException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMillis;
+
+        ServerThrottlingException(URL url, int responseCode, long retryAfterMillis) {
+            super("Server returned HTTP response code: " + responseCode + " for URL: " + url
+                    + (retryAfterMillis > 0 ? " (retry after " + retryAfterMillis + " ms)" : ""));
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
 //    // WOW!! WikiMedia's SSL certificate is apparently expired. Invoking the following
 //    //  results in a javax.net.ssl.SSLHandshakeException being thrown!
 //    //  Workaround for this found here:
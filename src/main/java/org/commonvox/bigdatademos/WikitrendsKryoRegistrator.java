@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.esotericsoftware.kryo.Kryo;
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.serializer.KryoSerializer;
+
+/**
+ * Registers the classes shuffled and persisted by {@link SparkDriver}, so that
+ * Kryo writes a small registration ID rather than a fully-qualified class name
+ * with each object.
+ *
+ * @author Daniel Vimont
+ */
+public class WikitrendsKryoRegistrator implements KryoRegistrator {
+
+    /**
+     * @param conf SparkConf to be set to use Kryo serialization with this registrator
+     * @return the passed SparkConf
+     */
+    public static SparkConf configure(SparkConf conf) {
+        return conf.set("spark.serializer", KryoSerializer.class.getName())
+                .set("spark.kryo.registrator", WikitrendsKryoRegistrator.class.getName());
+    }
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+        kryo.register(PageViewKey.class, new PageViewKey.KryoSerializer());
+        kryo.register(PageViewKey[].class);
+        kryo.register(TopPagesHeap.class);
+        kryo.register(long[].class);
+        kryo.register(int[].class);
+        kryo.register(byte[].class);
+    }
+}
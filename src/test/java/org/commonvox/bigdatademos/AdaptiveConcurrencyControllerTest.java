@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Daniel Vimont
+ */
+public class AdaptiveConcurrencyControllerTest {
+
+    private static final long ROUND_MILLIS = 50;
+
+    @Test
+    public void limitGrowsWhileThroughputImprovesUpToMaximum() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("host", 3);
+        assertEquals(1, controller.getLimit());
+        completeRound(controller, 1_000);
+        assertEquals(2, controller.getLimit());
+        completeRound(controller, 10_000);
+        assertEquals(3, controller.getLimit());
+        completeRound(controller, 100_000);
+        assertEquals(3, controller.getLimit());
+    }
+
+    @Test
+    public void limitHoldsWhenThroughputDoesNotImprove() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("host", 8);
+        completeRound(controller, 10_000);
+        assertEquals(2, controller.getLimit());
+        completeRound(controller, 0);
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void failureHalvesLimitOncePerCooldown() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("host", 4);
+        completeRound(controller, 1_000);
+        completeRound(controller, 10_000);
+        completeRound(controller, 100_000);
+        assertEquals(4, controller.getLimit());
+        controller.onFailure("429");
+        assertEquals(2, controller.getLimit());
+        // a burst of failures (e.g., of all downloads in flight) counts once
+        controller.onFailure("429");
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void acquireBlocksAtLimit() throws InterruptedException {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController("host", 4);
+        controller.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                controller.acquire();
+                acquired.countDown();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        controller.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    public void backoffIsJitteredWithinBounds() {
+        boolean varied = false;
+        long first = AdaptiveConcurrencyController.getBackoffMillis(3, 0);
+        for (int i = 0; i < 1000; i++) {
+            long backoff = AdaptiveConcurrencyController.getBackoffMillis(1, 0);
+            assertTrue(backoff >= 0 && backoff <= 500);
+            long laterBackoff = AdaptiveConcurrencyController.getBackoffMillis(3, 0);
+            assertTrue(laterBackoff >= 0 && laterBackoff <= 2000);
+            varied |= laterBackoff != first;
+            assertTrue(AdaptiveConcurrencyController.getBackoffMillis(40, 0) <= 60_000);
+        }
+        assertTrue(varied);
+        // the server's Retry-After delay, if longer, is honored
+        assertEquals(90_000, AdaptiveConcurrencyController.getBackoffMillis(1, 90_000));
+    }
+
+    /**
+     * Completes as many downloads as the current limit, which together read the
+     * given count of bytes over (slightly more than) the same span of time as
+     * every other round, so that throughput is proportional to the bytes read.
+     */
+    private static void completeRound(AdaptiveConcurrencyController controller, int bytes)
+            throws IOException, InterruptedException {
+        int downloads = controller.getLimit();
+        Thread.sleep(ROUND_MILLIS);
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = controller.meter(new ByteArrayInputStream(new byte[bytes]))) {
+            while (inputStream.read(buffer, 0, buffer.length) > 0) {
+            }
+        }
+        for (int i = 0; i < downloads; i++) {
+            controller.onSuccess();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs ElasticSearchBulkIndexer against a stand-in _bulk endpoint (an embedded
+ * HTTP server), which may reject or fail chosen documents, and may hold
+ * requests until released.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchBulkIndexerTest {
+
+    private static final String ENDPOINT = "/test-index/test-type/_bulk";
+    private static final Pattern DOC_ID = Pattern.compile("\"_id\":\"([^\"]*)\"");
+    private static final String DOC = "{\"views\":1}";
+
+    private HttpServer server;
+    private RestClient client;
+    private Path deadLetterPath;
+    // ids of the documents of each request received, in order of receipt
+    private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> indexedIds = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> rejectedOnceIds = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> alwaysRejectedIds = new HashSet<>();
+    private final Set<String> failingIds = new HashSet<>();
+    private final AtomicInteger requestsInProgress = new AtomicInteger();
+    private volatile CountDownLatch requestRelease = new CountDownLatch(0);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(ENDPOINT, this::handleBulkRequest);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort()))
+                .build();
+        deadLetterPath = Files.createTempFile("wikitrends", ".deadletter.ndjson");
+        Files.delete(deadLetterPath);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        requestRelease.countDown();
+        client.close();
+        server.stop(0);
+        Files.deleteIfExists(deadLetterPath);
+    }
+
+    @Test
+    public void batchIsSentOnceItHoldsMaxDocs() throws Exception {
+        try (ElasticSearchBulkIndexer indexer = newIndexer(4, 1 << 20, 1, 5)) {
+            addAll(indexer, ids(10));
+        }
+        assertEquals(Arrays.asList(4, 4, 2), requestSizes());
+        assertEquals(new HashSet<>(ids(10)), indexedIds);
+    }
+
+    @Test
+    public void batchIsSentBeforeItWouldExceedMaxBytes() throws Exception {
+        // room for three (action, document) pairs, but not for four
+        int maxBytes = 3 * pairBytes("doc-0") + 1;
+        try (ElasticSearchBulkIndexer indexer = newIndexer(1000, maxBytes, 1, 5)) {
+            addAll(indexer, ids(8));
+        }
+        assertEquals(Arrays.asList(3, 3, 2), requestSizes());
+        assertEquals(8, indexedIds.size());
+    }
+
+    @Test
+    public void documentLargerThanMaxBytesIsSentAlone() throws Exception {
+        try (ElasticSearchBulkIndexer indexer = newIndexer(1000, 10, 1, 5)) {
+            addAll(indexer, ids(3));
+        }
+        assertEquals(Arrays.asList(1, 1, 1), requestSizes());
+    }
+
+    @Test
+    public void handOffBlocksWhileMaxInFlightRequestsArePending() throws Exception {
+        requestRelease = new CountDownLatch(1);
+        AtomicInteger docsAdded = new AtomicInteger();
+        try (ElasticSearchBulkIndexer indexer = newIndexer(1, 1 << 20, 2, 5)) {
+            Thread reader = new Thread(() -> {
+                ElasticSearchBulkIndexer.Batch batch = indexer.newBatch();
+                try {
+                    for (String id : ids(5)) {
+                        batch.add(id, DOC);
+                        docsAdded.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            reader.start();
+            try {
+                waitFor(() -> requestsInProgress.get() == 2);
+                // the third document's request waits for one of the two in flight
+                Thread.sleep(200);
+                assertEquals(2, docsAdded.get());
+                assertEquals(2, requests.size());
+                assertTrue(reader.isAlive());
+            } finally {
+                // (else closing the indexer would wait forever)
+                requestRelease.countDown();
+            }
+            reader.join(10000);
+            assertFalse(reader.isAlive());
+        }
+        assertEquals(5, requests.size());
+        assertEquals(new HashSet<>(ids(5)), indexedIds);
+    }
+
+    @Test
+    public void onlyRejectedDocumentsAreResent() throws Exception {
+        rejectedOnceIds.addAll(Arrays.asList("doc-3", "doc-7"));
+        try (ElasticSearchBulkIndexer indexer = newIndexer(1000, 1 << 20, 1, 5)) {
+            addAll(indexer, ids(10));
+            assertEquals(0, indexer.getFailedDocs());
+        }
+        assertEquals(Arrays.asList(10, 2), requestSizes());
+        assertEquals(Arrays.asList("doc-3", "doc-7"), requests.get(1));
+        assertEquals(new HashSet<>(ids(10)), indexedIds);
+        assertFalse(Files.exists(deadLetterPath));
+    }
+
+    @Test
+    public void failedAndStillRejectedDocumentsAreDeadLettered() throws Exception {
+        failingIds.add("doc-1");
+        alwaysRejectedIds.add("doc-4");
+        ElasticSearchBulkIndexer indexer = newIndexer(1000, 1 << 20, 1, 2);
+        try {
+            addAll(indexer, ids(6));
+        } finally {
+            indexer.close();
+        }
+        // initial request, then two retries of the document still rejected
+        assertEquals(Arrays.asList(6, 1, 1), requestSizes());
+        assertEquals(2, indexer.getFailedDocs());
+        assertEquals(4, indexer.getIndexedDocs());
+        assertEquals(Long.valueOf(1), indexer.getFailureCountsByStatus().get("400"));
+        assertEquals(Long.valueOf(3), indexer.getFailureCountsByStatus().get("429"));
+        // the dead-letter file is itself in bulk format
+        assertEquals(Arrays.asList(
+                SimpleJson.bulkIndexAction("doc-1"), DOC,
+                SimpleJson.bulkIndexAction("doc-4"), DOC),
+                Files.readAllLines(deadLetterPath, StandardCharsets.UTF_8));
+    }
+
+    private ElasticSearchBulkIndexer newIndexer(int maxDocs, int maxBytes, int maxInFlight,
+            int maxRetries) {
+        return new ElasticSearchBulkIndexer(client, ENDPOINT, maxDocs, maxBytes, maxInFlight,
+                maxRetries, deadLetterPath);
+    }
+
+    private static void addAll(ElasticSearchBulkIndexer indexer, List<String> ids)
+            throws InterruptedException {
+        ElasticSearchBulkIndexer.Batch batch = indexer.newBatch();
+        for (String id : ids) {
+            batch.add(id, DOC);
+        }
+        batch.flush();
+    }
+
+    private static void waitFor(BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int pairBytes(String docId) {
+        return SimpleJson.bulkIndexAction(docId).length() + DOC.length() + 2;
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("doc-" + i);
+        }
+        return ids;
+    }
+
+    private List<Integer> requestSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (List<String> request : requests) {
+            sizes.add(request.size());
+        }
+        return sizes;
+    }
+
+    private void handleBulkRequest(HttpExchange exchange) throws IOException {
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = DOC_ID.matcher(readBody(exchange.getRequestBody()));
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        requests.add(ids);
+        requestsInProgress.incrementAndGet();
+        try {
+            requestRelease.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            requestsInProgress.decrementAndGet();
+        }
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        for (String id : ids) {
+            int status = 201;
+            if (failingIds.contains(id)) {
+                status = 400;
+            } else if (alwaysRejectedIds.contains(id) || rejectedOnceIds.remove(id)) {
+                status = 429;
+            } else {
+                indexedIds.add(id);
+            }
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append("{\"index\":{\"_id\":\"").append(id).append("\",\"status\":")
+                    .append(status);
+            if (status != 201) {
+                errors = true;
+                items.append(",\"error\":{\"type\":\"")
+                        .append(status == 429 ? "es_rejected_execution_exception"
+                                : "mapper_parsing_exception")
+                        .append("\"}");
+            }
+            items.append("}}");
+        }
+        respond(exchange, 200,
+                "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}");
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Installs ElasticSearchIndexTemplate, both directly and as ElasticSearchLoader
+ * does before loading, against a stand-in cluster (an embedded HTTP server)
+ * whose installed template, and whose response to the PUT of a template, are
+ * chosen by each test.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchIndexTemplateTest {
+
+    private static final String INDEX = "test-index";
+    private static final String TYPE = "test-type";
+    private static final String TEMPLATE_ENDPOINT =
+            "/_template/" + ElasticSearchIndexTemplate.getTemplateName(INDEX);
+    private static final String BULK_ENDPOINT = "/" + INDEX + "/" + TYPE + "/_bulk";
+    private static final String[] PROPERTIES = {
+        ElasticSearchLoader.NODES_PROPERTY,
+        ElasticSearchLoader.DEAD_LETTER_FILE_PROPERTY,
+        ElasticSearchLoader.INSTALL_TEMPLATE_PROPERTY,
+    };
+
+    private HttpServer server;
+    private RestClient client;
+    private File inputDirectory;
+    private File deadLetterFile;
+    // method and path of each request received, in order of receipt
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    // body of the installed template (null if none), and status of the response to a PUT
+    private volatile String installedTemplate;
+    private volatile int putStatus = 200;
+    private volatile boolean indexExists;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handleRequest);
+        server.start();
+        client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort()))
+                .build();
+        inputDirectory = Files.createTempDirectory("wikitrends-es-input").toFile();
+        deadLetterFile = new File(inputDirectory.getParentFile(),
+                inputDirectory.getName() + ".deadletter.ndjson");
+        Files.write(new File(inputDirectory, "part-00000").toPath(), Arrays.asList(
+                "(20161023,{\"interval\":\"20161023\",\"topPages\":[]})",
+                "(201610,{\"interval\":\"201610\",\"topPages\":[]})"),
+                StandardCharsets.UTF_8);
+        System.setProperty(ElasticSearchLoader.NODES_PROPERTY,
+                "localhost:" + server.getAddress().getPort());
+        System.setProperty(ElasticSearchLoader.DEAD_LETTER_FILE_PROPERTY,
+                deadLetterFile.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        for (File file : inputDirectory.listFiles()) {
+            file.delete();
+        }
+        inputDirectory.delete();
+        deadLetterFile.delete();
+    }
+
+    @Test
+    public void templateIsInstalledBeforeLoading() throws Exception {
+        ElasticSearchLoader.main(new String[] {INDEX, TYPE, inputDirectory.getPath()});
+        assertEquals(Arrays.asList(
+                "GET " + TEMPLATE_ENDPOINT,
+                "PUT " + TEMPLATE_ENDPOINT,
+                "HEAD /" + INDEX,
+                "POST " + BULK_ENDPOINT), requests);
+        assertEquals(ElasticSearchIndexTemplate.getTemplate(INDEX, TYPE), installedTemplate);
+    }
+
+    @Test
+    public void templateIsNotInstalledWhenDisabled() throws Exception {
+        System.setProperty(ElasticSearchLoader.INSTALL_TEMPLATE_PROPERTY, "false");
+        ElasticSearchLoader.main(new String[] {INDEX, TYPE, inputDirectory.getPath()});
+        assertEquals(Arrays.asList("POST " + BULK_ENDPOINT), requests);
+    }
+
+    @Test
+    public void currentTemplateIsNotReplaced() throws Exception {
+        installedTemplate = "{\"template\":\"" + INDEX + "\",\"version\":"
+                + ElasticSearchIndexTemplate.TEMPLATE_VERSION + "}";
+        ElasticSearchIndexTemplate.install(client, INDEX, TYPE);
+        assertEquals(Arrays.asList("GET " + TEMPLATE_ENDPOINT), requests);
+    }
+
+    @Test
+    public void olderOrUnversionedTemplateIsReplaced() throws Exception {
+        for (String oldTemplate : new String[] {
+                "{\"template\":\"" + INDEX + "\",\"version\":"
+                        + (ElasticSearchIndexTemplate.TEMPLATE_VERSION - 1) + "}",
+                "{\"template\":\"" + INDEX + "\"}"}) {
+            installedTemplate = oldTemplate;
+            indexExists = true;
+            requests.clear();
+            ElasticSearchIndexTemplate.install(client, INDEX, TYPE);
+            assertEquals(Arrays.asList(
+                    "GET " + TEMPLATE_ENDPOINT,
+                    "PUT " + TEMPLATE_ENDPOINT,
+                    "HEAD /" + INDEX), requests);
+            assertEquals(ElasticSearchIndexTemplate.getTemplate(INDEX, TYPE), installedTemplate);
+        }
+    }
+
+    @Test
+    public void failedInstallationStopsLoading() throws Exception {
+        putStatus = 500;
+        try {
+            ElasticSearchLoader.main(new String[] {INDEX, TYPE, inputDirectory.getPath()});
+            fail("expected ResponseException");
+        } catch (ResponseException ex) {
+            assertEquals(500, ex.getResponse().getStatusLine().getStatusCode());
+        }
+        // no documents are loaded under dynamic mappings
+        assertEquals(Arrays.asList("GET " + TEMPLATE_ENDPOINT, "PUT " + TEMPLATE_ENDPOINT),
+                requests);
+    }
+
+    @Test
+    public void unparseableInstalledTemplateFailsInstallation() throws Exception {
+        installedTemplate = "not json";
+        try {
+            ElasticSearchIndexTemplate.install(client, INDEX, TYPE);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(TEMPLATE_ENDPOINT));
+        }
+        assertEquals(Arrays.asList("GET " + TEMPLATE_ENDPOINT), requests);
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String body = readBody(exchange.getRequestBody());
+        requests.add(method + " " + path);
+        if (path.equals(TEMPLATE_ENDPOINT)) {
+            if (method.equals("GET")) {
+                if (installedTemplate == null) {
+                    respond(exchange, 404, "{}");
+                } else {
+                    // (the response of ElasticSearch is keyed by template name)
+                    respond(exchange, 200, installedTemplate.startsWith("{")
+                            ? "{\"" + ElasticSearchIndexTemplate.getTemplateName(INDEX) + "\":"
+                                    + installedTemplate + "}"
+                            : installedTemplate);
+                }
+            } else if (putStatus == 200) {
+                installedTemplate = body;
+                respond(exchange, 200, "{\"acknowledged\":true}");
+            } else {
+                respond(exchange, putStatus, "{\"error\":\"stand-in failure\"}");
+            }
+        } else if (path.equals("/" + INDEX)) {
+            exchange.sendResponseHeaders(indexExists ? 200 : 404, -1);
+            exchange.close();
+        } else if (path.equals(BULK_ENDPOINT)) {
+            StringBuilder items = new StringBuilder();
+            for (String line : body.split("\n")) {
+                if (line.startsWith("{\"index\"")) {
+                    items.append(items.length() > 0 ? "," : "")
+                            .append("{\"index\":{\"status\":201}}");
+                }
+            }
+            respond(exchange, 200, "{\"took\":1,\"errors\":false,\"items\":[" + items + "]}");
+        } else {
+            respond(exchange, 404, "{}");
+        }
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.http.HttpHost;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs ElasticSearchIndexTuner against a stand-in cluster (an embedded HTTP
+ * server), which records the requests made of it.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchIndexTunerTest {
+
+    private static final String INDEX = "test-index";
+
+    private HttpServer server;
+    // method and URI of each request received, in order of receipt
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    // body of each PUT of the index settings
+    private final List<JSONObject> putSettings = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean indexExists = true;
+    private volatile String currentSettings =
+            "{\"refresh_interval\":\"5s\",\"number_of_replicas\":\"1\",\"number_of_shards\":\"5\"}";
+    private volatile boolean forceMergeFails = false;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handleRequest);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void settingsAreDisabledAndThenRestoredAfterRefreshAndForceMerge() throws Exception {
+        try (ElasticSearchIndexTuner tuner = newTuner()) {
+            tuner.tuneForBulkLoad();
+            tuner.restore(2);
+        }
+        assertEquals(Arrays.asList(
+                "GET /" + INDEX + "/_settings",
+                "PUT /" + INDEX + "/_settings",
+                "POST /" + INDEX + "/_refresh",
+                "POST /" + INDEX + "/_forcemerge?max_num_segments=2",
+                "PUT /" + INDEX + "/_settings"), requests);
+        assertIndexSettings(putSettings.get(0), "-1", 0L);
+        assertIndexSettings(putSettings.get(1), "5s", "1");
+    }
+
+    @Test
+    public void forceMergeIsOptional() throws Exception {
+        try (ElasticSearchIndexTuner tuner = newTuner()) {
+            tuner.tuneForBulkLoad();
+            tuner.restore(0);
+        }
+        assertEquals(Arrays.asList(
+                "GET /" + INDEX + "/_settings",
+                "PUT /" + INDEX + "/_settings",
+                "POST /" + INDEX + "/_refresh",
+                "PUT /" + INDEX + "/_settings"), requests);
+    }
+
+    @Test
+    public void missingIndexIsCreatedAndUnsetSettingsAreReset() throws Exception {
+        indexExists = false;
+        currentSettings = "{\"number_of_shards\":\"5\"}";
+        try (ElasticSearchIndexTuner tuner = newTuner()) {
+            tuner.tuneForBulkLoad();
+            tuner.restore(0);
+        }
+        assertEquals(Arrays.asList(
+                "GET /" + INDEX + "/_settings",
+                "PUT /" + INDEX,
+                "GET /" + INDEX + "/_settings",
+                "PUT /" + INDEX + "/_settings",
+                "POST /" + INDEX + "/_refresh",
+                "PUT /" + INDEX + "/_settings"), requests);
+        // null resets each setting to its default
+        assertIndexSettings(putSettings.get(1), null, null);
+    }
+
+    @Test
+    public void settingsAreRestoredDespiteFailedForceMerge() throws Exception {
+        forceMergeFails = true;
+        try (ElasticSearchIndexTuner tuner = newTuner()) {
+            tuner.tuneForBulkLoad();
+            try {
+                tuner.restore(1);
+                fail("expected IOException");
+            } catch (IOException ex) {
+                // expected
+            }
+            // once restored, the index is not restored again
+            tuner.restore(1);
+        }
+        assertEquals("PUT /" + INDEX + "/_settings", requests.get(requests.size() - 1));
+        assertEquals(2, putSettings.size());
+        assertIndexSettings(putSettings.get(1), "5s", "1");
+    }
+
+    @Test
+    public void untunedIndexIsNotRestored() throws Exception {
+        try (ElasticSearchIndexTuner tuner = newTuner()) {
+            tuner.restore(1);
+        }
+        assertTrue(requests.isEmpty());
+    }
+
+    private ElasticSearchIndexTuner newTuner() {
+        return new ElasticSearchIndexTuner(
+                new HttpHost[] {new HttpHost("localhost", server.getAddress().getPort())}, INDEX);
+    }
+
+    private static void assertIndexSettings(JSONObject settings, Object refreshInterval,
+            Object numberOfReplicas) {
+        JSONObject indexSettings = (JSONObject) settings.get("index");
+        assertEquals(2, indexSettings.size());
+        if (refreshInterval == null) {
+            assertNull(indexSettings.get("refresh_interval"));
+            assertNull(indexSettings.get("number_of_replicas"));
+            assertTrue(indexSettings.containsKey("refresh_interval"));
+            assertTrue(indexSettings.containsKey("number_of_replicas"));
+            return;
+        }
+        assertEquals(refreshInterval, indexSettings.get("refresh_interval"));
+        assertEquals(numberOfReplicas, indexSettings.get("number_of_replicas"));
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+        String body = readBody(exchange.getRequestBody());
+        requests.add(method + " " + path + (query == null ? "" : "?" + query));
+        if (path.equals("/" + INDEX + "/_settings")) {
+            if (method.equals("GET")) {
+                if (indexExists) {
+                    respond(exchange, 200, "{\"" + INDEX + "\":{\"settings\":{\"index\":"
+                            + currentSettings + "}}}");
+                } else {
+                    respond(exchange, 404, "{\"error\":{\"type\":\"index_not_found_exception\"},"
+                            + "\"status\":404}");
+                }
+                return;
+            }
+            try {
+                putSettings.add((JSONObject) new JSONParser().parse(body));
+            } catch (ParseException ex) {
+                throw new IOException(ex);
+            }
+        } else if (path.equals("/" + INDEX) && method.equals("PUT")) {
+            indexExists = true;
+        } else if (path.endsWith("/_forcemerge") && forceMergeFails) {
+            respond(exchange, 500, "{\"error\":{\"type\":\"exception\"},\"status\":500}");
+            return;
+        }
+        respond(exchange, 200, "{\"acknowledged\":true}");
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
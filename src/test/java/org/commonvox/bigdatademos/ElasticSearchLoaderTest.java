@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs ElasticSearchLoader, with several loader threads, over a directory of
+ * input files, against a stand-in _bulk endpoint (an embedded HTTP server).
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchLoaderTest {
+
+    private static final String INDEX = "test-index";
+    private static final String TYPE = "test-type";
+    private static final Pattern DOC_ID = Pattern.compile("\"_id\":\"([^\"]*)\"");
+    private static final String[] PROPERTIES = {
+        ElasticSearchLoader.NODES_PROPERTY,
+        ElasticSearchLoader.LOADER_THREADS_PROPERTY,
+        ElasticSearchLoader.MAX_IN_FLIGHT_PROPERTY,
+        ElasticSearchLoader.BULK_DOCS_PROPERTY,
+        ElasticSearchLoader.DEAD_LETTER_FILE_PROPERTY,
+        ElasticSearchLoader.INSTALL_TEMPLATE_PROPERTY,
+    };
+
+    private HttpServer server;
+    private File inputDirectory;
+    private File deadLetterFile;
+    // ids of documents which must be indexed, and of all documents written
+    private final Set<String> expectedIds = new HashSet<>();
+    private final Set<String> writtenIds = new HashSet<>();
+    private final Set<String> indexedIds = Collections.synchronizedSet(new HashSet<>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/" + INDEX + "/" + TYPE + "/_bulk", this::handleBulkRequest);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        inputDirectory = Files.createTempDirectory("wikitrends-es-input").toFile();
+        deadLetterFile = new File(inputDirectory.getParentFile(),
+                inputDirectory.getName() + ".deadletter.ndjson");
+        System.setProperty(ElasticSearchLoader.NODES_PROPERTY,
+                "localhost:" + server.getAddress().getPort());
+        System.setProperty(ElasticSearchLoader.LOADER_THREADS_PROPERTY, "3");
+        System.setProperty(ElasticSearchLoader.MAX_IN_FLIGHT_PROPERTY, "2");
+        System.setProperty(ElasticSearchLoader.DEAD_LETTER_FILE_PROPERTY,
+                deadLetterFile.getAbsolutePath());
+        System.setProperty(ElasticSearchLoader.INSTALL_TEMPLATE_PROPERTY, "false");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        for (File file : inputDirectory.listFiles()) {
+            file.delete();
+        }
+        inputDirectory.delete();
+        deadLetterFile.delete();
+    }
+
+    @Test
+    public void filesOfBothFormatsAreLoadedConcurrently() throws Exception {
+        System.setProperty(ElasticSearchLoader.BULK_DOCS_PROPERTY, "7");
+        for (int file = 0; file < 6; file++) {
+            writeInputFile(file, 50, file % 2 == 0, false);
+        }
+        ElasticSearchLoader.main(new String[] {INDEX, TYPE, inputDirectory.getPath()});
+        assertEquals(expectedIds, indexedIds);
+        assertFalse(deadLetterFile.exists());
+    }
+
+    @Test
+    public void documentsReadBeforeFailureOfFileAreSent() throws Exception {
+        // the whole of each file fits in a single bulk request
+        System.setProperty(ElasticSearchLoader.BULK_DOCS_PROPERTY, "5000");
+        writeInputFile(0, 50, false, false);
+        // (enough lines for some of them to be read before the undecodable bytes are reached)
+        writeInputFile(1, 1000, false, true);
+        writeInputFile(2, 1000, true, true);
+        ElasticSearchLoader.main(new String[] {INDEX, TYPE, inputDirectory.getPath()});
+        assertTrue(indexedIds.containsAll(expectedIds));
+        assertTrue(writtenIds.containsAll(indexedIds));
+        for (String filePrefix : new String[] {"doc-1-", "doc-2-"}) {
+            assertTrue(expectedIds.stream().anyMatch(id -> id.startsWith(filePrefix)));
+        }
+    }
+
+    /**
+     * Writes a file of either tuple-format or bulk-format documents, optionally
+     * followed by bytes which are not valid UTF-8, upon which reading fails.
+     * Of a file that fails, only documents read before the failure are expected.
+     */
+    private void writeInputFile(int file, int docCount, boolean bulkFormat,
+            boolean failingRead) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < docCount; i++) {
+            String id = String.format("doc-%d-%04d", file, i);
+            ids.add(id);
+            writtenIds.add(id);
+            String json = "{\"interval\":\"" + id + "\",\"views\":" + i + "}";
+            String lines = bulkFormat
+                    ? SimpleJson.bulkIndexAction(id) + "\n" + json + "\n"
+                    : "(" + id + "," + json + ")\n";
+            content.write(lines.getBytes(StandardCharsets.UTF_8));
+        }
+        if (failingRead) {
+            content.write(new byte[] {(byte) 0xC3, (byte) 0x28, '\n'});
+            // the reader decodes 8192 bytes (into 8192 chars) at a time, so
+            //   documents of the final 16 KB before the undecodable bytes may be unread
+            int readLength = content.size() - 8192 * 2;
+            String readContent = new String(content.toByteArray(), 0, Math.max(0, readLength),
+                    StandardCharsets.UTF_8);
+            for (String id : ids) {
+                if (readContent.contains(id + (bulkFormat ? "\",\"views\"" : ","))) {
+                    expectedIds.add(id);
+                }
+            }
+        } else {
+            expectedIds.addAll(ids);
+        }
+        Files.write(new File(inputDirectory, String.format("part-%05d", file)).toPath(),
+                content.toByteArray());
+    }
+
+    private void handleBulkRequest(HttpExchange exchange) throws IOException {
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = DOC_ID.matcher(readBody(exchange.getRequestBody()));
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        indexedIds.addAll(ids);
+        StringBuilder items = new StringBuilder();
+        for (String id : ids) {
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append("{\"index\":{\"_id\":\"").append(id).append("\",\"status\":201}}");
+        }
+        byte[] bytes = ("{\"took\":1,\"errors\":false,\"items\":[" + items + "]}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.spark.SparkConf;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Tuple2;
+
+/**
+ * Runs ElasticSearchSink against a stand-in _bulk endpoint (an embedded HTTP
+ * server), which may reject chosen documents, or whole requests.
+ *
+ * @author Daniel Vimont
+ */
+public class ElasticSearchSinkTest {
+
+    private static final Pattern DOC_ID = Pattern.compile("\"_id\":\"([^\"]*)\"");
+    // each document is 100 chars long
+    private static final String DOC = String.format("{\"padding\":\"%087d\"}", 0);
+
+    private HttpServer server;
+    // ids of the documents of each request received, in order of receipt
+    private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> indexedIds = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> rejectedOnceIds = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> alwaysRejectedIds = new HashSet<>();
+    private final Set<String> failingIds = new HashSet<>();
+    private volatile int wholeRequestRejections = 0;
+    private volatile int wholeRequestRejectionStatus = 429;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/test-index/test-type/_bulk", this::handleBulkRequest);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void batchesAreBoundedAndLastPartialBatchIsFlushed() throws Exception {
+        // room for the (action, document) pairs of doc-0 thru doc-9, or of doc-10 thru doc-19
+        newSink(10 * pairBytes("doc-10"), 5).call(docs(25).iterator());
+        List<Integer> requestSizes = requestSizes();
+        Collections.sort(requestSizes);
+        assertEquals(Arrays.asList(5, 10, 10), requestSizes);
+        assertEquals(new HashSet<>(ids(25)), indexedIds);
+    }
+
+    @Test
+    public void onlyRejectedDocumentsAreResent() throws Exception {
+        rejectedOnceIds.addAll(Arrays.asList("doc-3", "doc-7"));
+        newSink(1 << 20, 5).call(docs(10).iterator());
+        assertEquals(Arrays.asList(10, 2), requestSizes());
+        assertEquals(Arrays.asList("doc-3", "doc-7"), requests.get(1));
+        assertEquals(new HashSet<>(ids(10)), indexedIds);
+    }
+
+    @Test
+    public void rejectedRequestIsResent() throws Exception {
+        wholeRequestRejections = 1;
+        newSink(1 << 20, 5).call(docs(5).iterator());
+        assertEquals(Arrays.asList(5, 5), requestSizes());
+        assertEquals(new HashSet<>(ids(5)), indexedIds);
+    }
+
+    @Test
+    public void unavailableRequestIsResent() throws Exception {
+        wholeRequestRejections = 2;
+        wholeRequestRejectionStatus = 503;
+        newSink(1 << 20, 5).call(docs(5).iterator());
+        assertEquals(Arrays.asList(5, 5, 5), requestSizes());
+        assertEquals(new HashSet<>(ids(5)), indexedIds);
+    }
+
+    @Test
+    public void retriesAreCapped() throws Exception {
+        alwaysRejectedIds.add("doc-1");
+        try {
+            newSink(1 << 20, 2).call(docs(3).iterator());
+            fail("expected IOException");
+        } catch (IOException ex) {
+            // initial request, then two retries
+            assertEquals(Arrays.asList(3, 1, 1), requestSizes());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failureOtherThanRejectionFailsTask() throws Exception {
+        failingIds.add("doc-2");
+        newSink(1 << 20, 5).call(docs(5).iterator());
+    }
+
+    private ElasticSearchSink newSink(int bulkBytes, int maxRetries) {
+        return new ElasticSearchSink(new SparkConf(false)
+                .set(ElasticSearchSink.NODES_CONF_KEY,
+                        "localhost:" + server.getAddress().getPort())
+                .set(ElasticSearchSink.INDEX_CONF_KEY, "test-index")
+                .set(ElasticSearchSink.TYPE_CONF_KEY, "test-type")
+                .set(ElasticSearchSink.BULK_BYTES_CONF_KEY, String.valueOf(bulkBytes))
+                .set(ElasticSearchSink.MAX_RETRIES_CONF_KEY, String.valueOf(maxRetries)));
+    }
+
+    private static int pairBytes(String docId) {
+        return SimpleJson.bulkIndexAction(docId).length() + DOC.length() + 2;
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("doc-" + i);
+        }
+        return ids;
+    }
+
+    private static List<Tuple2<String, String>> docs(int count) {
+        List<Tuple2<String, String>> docs = new ArrayList<>();
+        for (String id : ids(count)) {
+            docs.add(new Tuple2<>(id, DOC));
+        }
+        return docs;
+    }
+
+    private List<Integer> requestSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (List<String> request : requests) {
+            sizes.add(request.size());
+        }
+        return sizes;
+    }
+
+    private void handleBulkRequest(HttpExchange exchange) throws IOException {
+        List<String> ids = new ArrayList<>();
+        Matcher matcher = DOC_ID.matcher(readBody(exchange.getRequestBody()));
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        requests.add(ids);
+        if (wholeRequestRejections > 0) {
+            wholeRequestRejections--;
+            respond(exchange, wholeRequestRejectionStatus,
+                    "{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":"
+                            + wholeRequestRejectionStatus + "}");
+            return;
+        }
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        for (String id : ids) {
+            int status = 201;
+            if (failingIds.contains(id)) {
+                status = 400;
+            } else if (alwaysRejectedIds.contains(id) || rejectedOnceIds.remove(id)) {
+                status = 429;
+            } else {
+                indexedIds.add(id);
+            }
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append("{\"index\":{\"_id\":\"").append(id).append("\",\"status\":")
+                    .append(status);
+            if (status != 201) {
+                errors = true;
+                items.append(",\"error\":{\"type\":\"")
+                        .append(status == 429 ? "es_rejected_execution_exception"
+                                : "mapper_parsing_exception")
+                        .append("\"}");
+            }
+            items.append("}}");
+        }
+        respond(exchange, 200,
+                "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}");
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
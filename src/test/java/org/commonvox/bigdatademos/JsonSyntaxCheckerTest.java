@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.spark.broadcast.Broadcast;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import scala.Tuple2;
+import scala.reflect.ClassTag$;
+
+/**
+ * Checks JsonSyntaxChecker against tables of well-formed and malformed JSON
+ * text, and against the lines outputted by SparkDriver.
+ *
+ * @author Daniel Vimont
+ */
+public class JsonSyntaxCheckerTest {
+
+    private static final String[] VALID = {
+        // numbers
+        "0", "-0", "7", "-12", "120", "0.5", "-0.25", "10.01",
+        "1e5", "1E5", "1e+5", "1e-5", "-2.5E-3", "0e0", "9223372036854775808",
+        // strings
+        "\"\"", "\"abc\"", "\"\\\"\"", "\"\\\\\"", "\"\\/\"",
+        "\"\\b\\f\\n\\r\\t\"", "\"\\u0000\"", "\"\\u00e9\\uD83D\\uDE00\"", "\"\\uABCD\\uabcd\"",
+        "\"\u00e9\u2603\"", "\"\u007f\"",
+        // literals
+        "true", "false", "null",
+        // nesting
+        "{}", "[]", "{ }", "[ ]", "[[]]", "[{}]", "{\"a\":{}}", "{\"a\":[]}",
+        "{\"a\":[1,{\"b\":[true,false,null]},\"c\"],\"d\":{\"e\":{\"f\":-1.5e3}}}",
+        "[[[[[[[[[[1]]]]]]]]]]",
+        // whitespace
+        " 1 ", "\t\r\n{ \"a\" :\t[ 1 , 2 ]\r\n}\n", " [ ] ",
+    };
+
+    private static final String[] INVALID = {
+        // numbers
+        "01", "-01", "00", "-", "+1", "1.", ".5", "-.5", "1.e5", "1e", "1e+", "1E-",
+        "0x1F", "1_000", "NaN", "Infinity", "-Infinity", "--1", "[01]", "{\"a\":-}",
+        // strings
+        "\"", "\"abc", "abc", "'abc'", "\"\\\"", "\"\\x\"", "\"\\a\"", "\"\\U0041\"",
+        "\"\\u\"", "\"\\u12\"", "\"\\u12G4\"", "\"\\u123\"",
+        "\"\u0000\"", "\"\u001f\"", "\"a\nb\"", "\"a\tb\"",
+        // literals
+        "tru", "True", "nul", "falsey", "nulll",
+        // nesting
+        "{", "}", "[", "]", "[}", "{]", "[1,]", "[,1]", "[1 2]", "{\"a\":1,}",
+        "{\"a\"}", "{\"a\":}", "{a:1}", "{1:1}", "{\"a\" 1}", "{\"a\":1 \"b\":2}",
+        "[[]", "[]]", "{\"a\":{}",
+        // trailing data
+        "{} {}", "[] x", "1 2", "\"a\" \"b\"", "{}x", "true false", "{}\u0000",
+        // whitespace (only space, tab, newline, and carriage return)
+        "", " ", "\u00a0{}", "{}\u000b", "\f1",
+    };
+
+    @Test
+    public void wellFormedJsonIsAccepted() {
+        for (String json : VALID) {
+            assertTrue("expected valid: <" + json + ">", JsonSyntaxChecker.isValid(json));
+        }
+    }
+
+    @Test
+    public void malformedJsonIsRejected() {
+        for (String json : INVALID) {
+            assertFalse("expected invalid: <" + json + ">", JsonSyntaxChecker.isValid(json));
+        }
+    }
+
+    @Test
+    public void onlyObjectsAreAcceptedAsDocuments() {
+        for (String json : new String[] {"{}", " {\"a\":1} "}) {
+            assertTrue(json, JsonSyntaxChecker.isValidObject(json, 0, json.length()));
+        }
+        for (String json : new String[] {"[]", "1", "\"{}\"", "null", "", "{} []"}) {
+            assertFalse(json, JsonSyntaxChecker.isValidObject(json, 0, json.length()));
+        }
+    }
+
+    @Test
+    public void onlyTheGivenRangeIsChecked() {
+        // e.g., the document following the docId and comma of a tuple-format line
+        String line = "(20161023,{\"interval\":\"20161023\"})";
+        int start = line.indexOf(',') + 1;
+        int end = line.length() - 1;
+        assertTrue(JsonSyntaxChecker.isValidObject(line, start, end));
+        assertFalse(JsonSyntaxChecker.isValidObject(line, start, line.length()));
+        assertFalse(JsonSyntaxChecker.isValidObject(line, start - 1, end));
+    }
+
+    @Test
+    public void nestingIsBounded() {
+        assertTrue(JsonSyntaxChecker.isValid(nestedArrays(256)));
+        assertFalse(JsonSyntaxChecker.isValid(nestedArrays(257)));
+        assertFalse(JsonSyntaxChecker.isValid(nestedArrays(100000)));
+    }
+
+    @Test
+    public void everyLineOutputtedBySparkDriverIsAccepted() throws Exception {
+        String[] pageIds = {
+            "en Main_Page",
+            "en \"Quoted\"_title",
+            "en C:\\Windows\\System32",
+            "en /slashes/and\\backslashes\\",
+            "de Stra\u00dfe_\u00fcber_\u00c4",
+            "ja \u6771\u4eac",
+            "en Snowman_\u2603_and_\ud83d\ude00",
+            "en Control\u0001chars\u001fand\ttab",
+            "en %22Percent-encoded%22",
+            "en ",
+        };
+        Map<Integer, PageViewKey> pageKeys = new HashMap<>();
+        TopPagesHeap heap = new TopPagesHeap(pageIds.length);
+        for (int pageIndex = 0; pageIndex < pageIds.length; pageIndex++) {
+            pageKeys.put(pageIndex, new PageViewKey(PageViewKey.NO_INTERVAL,
+                    pageIds[pageIndex].getBytes(StandardCharsets.UTF_8)));
+            heap.offer(1000 - pageIndex, pageIndex);
+        }
+        SparkDriver.JsonMapper jsonMapper = new SparkDriver.JsonMapper(localBroadcast(pageKeys));
+        for (int interval : new int[] {20161023, 201610, 2016}) {
+            Tuple2<String, String> docIdAndJson =
+                    jsonMapper.call(new Tuple2<>(interval, heap.sortDescending()));
+            // tuple output: the document line follows the docId
+            assertTrue(docIdAndJson._2(), JsonSyntaxChecker.isValidObject(
+                    docIdAndJson._2(), 0, docIdAndJson._2().length()));
+            // bulk output: the action line precedes the document line
+            String actionLine = SimpleJson.bulkIndexAction(docIdAndJson._1());
+            assertTrue(actionLine,
+                    JsonSyntaxChecker.isValidObject(actionLine, 0, actionLine.length()));
+        }
+    }
+
+    private static String nestedArrays(int depth) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            json.append('[');
+        }
+        for (int i = 0; i < depth; i++) {
+            json.append(']');
+        }
+        return json.toString();
+    }
+
+    /**
+     * @return a Broadcast holding the value locally (no SparkContext being needed)
+     */
+    private static <T> Broadcast<T> localBroadcast(T value) {
+        return new Broadcast<T>(0L, ClassTag$.MODULE$.apply(Object.class)) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public T getValue() {
+                return value;
+            }
+
+            @Override
+            public void doUnpersist(boolean blocking) { }
+
+            @Override
+            public void doDestroy(boolean blocking) { }
+        };
+    }
+}
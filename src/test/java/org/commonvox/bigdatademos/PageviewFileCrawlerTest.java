@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs PageviewFileCrawler against a stand-in index server (an embedded HTTP
+ * server serving Apache-style directory listings) of the years 2015 and 2021,
+ * with its manifest kept in a temporary file between crawls.
+ *
+ * @author Daniel Vimont
+ */
+public class PageviewFileCrawlerTest {
+
+    private static final String ROOT_PATH = "/other/pageviews/";
+
+    private HttpServer server;
+    private Path manifestPath;
+    // content of each index page, by path
+    private final Map<String, String> indexPages = new ConcurrentHashMap<>();
+    // path of each index page fetched, in order of receipt
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws IOException {
+        indexPages.put(ROOT_PATH, listing(
+                "2015/", "01-Jan-2016 01:29", "-",
+                "2021/", "01-Jan-2022 00:53", "-"));
+        indexPages.put(ROOT_PATH + "2015/", listing(
+                "2015-05/", "01-Jun-2015 00:41", "-",
+                "2015-06/", "01-Jul-2015 00:12", "-"));
+        indexPages.put(ROOT_PATH + "2021/", listing(
+                "2021-12/", "01-Jan-2022 00:53", "-"));
+        indexPages.put(ROOT_PATH + "2015/2015-05/", listing(
+                "pageviews-20150501-000000.gz", "01-May-2015 01:29", "89472384",
+                "pageviews-20150501-010000.gz", "01-May-2015 02:29", "86129722"));
+        indexPages.put(ROOT_PATH + "2015/2015-06/", listing(
+                "pageviews-20150601-000000.gz", "01-Jun-2015 01:29", "90215432"));
+        indexPages.put(ROOT_PATH + "2021/2021-12/", listing(
+                "pageviews-20211231-220000.gz", "01-Jan-2022 00:53", "52818101",
+                "md5sums.txt", "01-Jan-2022 00:53", "3264"));
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(ROOT_PATH, this::handleRequest);
+        server.start();
+        manifestPath = Files.createTempFile("pageview_files", ".manifest");
+        Files.delete(manifestPath);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        Files.deleteIfExists(manifestPath);
+    }
+
+    @Test
+    public void filesOfAllYearsAreFound() throws Exception {
+        assertEquals(urlStrings(
+                "2015/2015-05/pageviews-20150501-000000.gz",
+                "2015/2015-05/pageviews-20150501-010000.gz",
+                "2015/2015-06/pageviews-20150601-000000.gz",
+                "2021/2021-12/pageviews-20211231-220000.gz"),
+                newCrawler().crawl(rootUrlString(), null, null));
+        assertEquals(6, requests.size());
+        assertTrue(Files.exists(manifestPath));
+    }
+
+    @Test
+    public void directoriesOutsideOfRangeAreNotFetched() throws Exception {
+        assertEquals(urlStrings("2021/2021-12/pageviews-20211231-220000.gz"),
+                newCrawler().crawl(rootUrlString(), "2021", "2021"));
+        assertEquals(Arrays.asList(ROOT_PATH, ROOT_PATH + "2021/", ROOT_PATH + "2021/2021-12/"),
+                requests);
+    }
+
+    @Test
+    public void laterCrawlFetchesOnlyNewOrChangedMonths() throws Exception {
+        TreeSet<String> firstUrlStrings = newCrawler().crawl(rootUrlString(), null, null);
+        requests.clear();
+
+        // unchanged months are taken from the manifest
+        assertEquals(firstUrlStrings, newCrawler().crawl(rootUrlString(), null, null));
+        assertEquals(3, requests.size());
+        assertTrue(requests.containsAll(
+                Arrays.asList(ROOT_PATH, ROOT_PATH + "2015/", ROOT_PATH + "2021/")));
+        requests.clear();
+
+        // a file is added to 2021-12, changing its listed timestamp
+        indexPages.put(ROOT_PATH + "2021/", listing(
+                "2021-12/", "01-Jan-2022 01:53", "-"));
+        indexPages.put(ROOT_PATH + "2021/2021-12/", listing(
+                "pageviews-20211231-220000.gz", "01-Jan-2022 00:53", "52818101",
+                "pageviews-20211231-230000.gz", "01-Jan-2022 01:53", "51004273"));
+        TreeSet<String> expectedUrlStrings = new TreeSet<>(firstUrlStrings);
+        expectedUrlStrings.addAll(urlStrings("2021/2021-12/pageviews-20211231-230000.gz"));
+        assertEquals(expectedUrlStrings, newCrawler().crawl(rootUrlString(), null, null));
+        assertEquals(4, requests.size());
+        assertTrue(requests.contains(ROOT_PATH + "2021/2021-12/"));
+    }
+
+    private PageviewFileCrawler newCrawler() throws IOException {
+        return new PageviewFileCrawler(manifestPath, 2, 1);
+    }
+
+    private String rootUrlString() {
+        return "http://localhost:" + server.getAddress().getPort() + ROOT_PATH;
+    }
+
+    private TreeSet<String> urlStrings(String... relativePaths) {
+        TreeSet<String> urlStrings = new TreeSet<>();
+        for (String relativePath : relativePaths) {
+            urlStrings.add(rootUrlString() + relativePath);
+        }
+        return urlStrings;
+    }
+
+    /**
+     * @param entries href, timestamp, and size of each entry of the listing
+     * @return index page in the format of Wikimedia's (Apache) directory listings
+     */
+    private static String listing(String... entries) {
+        StringBuilder page = new StringBuilder(
+                "<html><body><h1>Index of pageviews</h1><hr><pre><a href=\"../\">../</a>\n");
+        for (int i = 0; i < entries.length; i += 3) {
+            page.append("<a href=\"").append(entries[i]).append("\">").append(entries[i])
+                    .append("</a>          ").append(entries[i + 1])
+                    .append("    ").append(entries[i + 2]).append('\n');
+        }
+        return page.append("</pre><hr></body></html>").toString();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.add(path);
+        String indexPage = indexPages.get(path);
+        if (indexPage == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = indexPage.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
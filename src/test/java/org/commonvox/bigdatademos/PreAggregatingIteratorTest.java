@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import scala.Tuple2;
+
+/**
+ *
+ * @author Daniel Vimont
+ */
+public class PreAggregatingIteratorTest {
+
+    private static final int DISTINCT_PAGES = 20000;
+    private static final int HOURS = 3;
+
+    @Test
+    public void everyViewIsCountedAcrossSeveralSpills() {
+        List<Tuple2<LongWritable, Text>> records = new ArrayList<>();
+        Map<String, Long> expectedViews = new HashMap<>();
+        for (int hour = 0; hour < HOURS; hour++) {
+            for (int page = 0; page < DISTINCT_PAGES; page++) {
+                long views = page % 7 + hour + 1;
+                records.add(new Tuple2<>(new LongWritable(2016070100L + hour),
+                        new Text("en Page_" + page + " " + views + " 0")));
+                expectedViews.merge("20160701 en Page_" + page, views, Long::sum);
+            }
+        }
+        // a budget of 64 KB is reached after some hundreds of entries
+        SparkDriver.PreAggregatingIterator iterator = new SparkDriver.PreAggregatingIterator(
+                records.iterator(), new PageViewRecordParser("en"), 64 * 1024);
+
+        Map<String, Long> actualViews = new HashMap<>();
+        int emittedEntries = 0;
+        while (iterator.hasNext()) {
+            Tuple2<PageViewKey, Long> entry = iterator.next();
+            actualViews.merge(entry._1().getInterval() + " " + entry._1().getPageId(),
+                    entry._2(), Long::sum);
+            emittedEntries++;
+        }
+        assertTrue("expected several spills, but got " + emittedEntries + " entries",
+                emittedEntries > DISTINCT_PAGES);
+        assertEquals(expectedViews, actualViews);
+    }
+
+    @Test
+    public void emptyPartitionYieldsNothing() {
+        SparkDriver.PreAggregatingIterator iterator = new SparkDriver.PreAggregatingIterator(
+                new ArrayList<Tuple2<LongWritable, Text>>().iterator(),
+                new PageViewRecordParser("en"), 64 * 1024);
+        assertEquals(false, iterator.hasNext());
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs WikimediaFileDownloader against an HDFS target (an in-process
+ * MiniDFSCluster), with files served by a stand-in dumps server (an embedded
+ * HTTP server) that honors Range requests, and that can be made to break off
+ * the first response for a file midway.
+ *
+ * @author Daniel Vimont
+ */
+public class WikimediaFileDownloaderHdfsTest {
+
+    private static final String DIRECTORY_PATH = "/other/pageviews/2016/2016-07/";
+    private static final String TARGET_PATH = "/nodelete/pageviews.hourly";
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final String[] PROPERTIES = {
+        WikimediaFileDownloader.TARGET_PROPERTY,
+        WikimediaFileDownloader.MAX_ATTEMPTS_PROPERTY,
+    };
+
+    private static File clusterDirectory;
+    private static MiniDFSCluster cluster;
+    private static FileSystem fileSystem;
+
+    private HttpServer server;
+    private final Map<String, byte[]> filesByName = new LinkedHashMap<>();
+    // file name and Range header (if any) of each request for a file, in order of receipt
+    private final List<String> fileRequests = Collections.synchronizedList(new ArrayList<>());
+    private volatile String interruptedFileName;
+
+    @BeforeClass
+    public static void startCluster() throws IOException {
+        clusterDirectory = Files.createTempDirectory("wikitrends-minidfs").toFile();
+        Configuration conf = new Configuration();
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, clusterDirectory.getAbsolutePath());
+        conf.setInt("dfs.replication", 1);
+        cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+        cluster.waitActive();
+        // (cached, and so also the FileSystem instance obtained by the downloader)
+        fileSystem = cluster.getFileSystem();
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        delete(clusterDirectory);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(17);
+        for (int i = 0; i < 3; i++) {
+            byte[] content = new byte[FILE_SIZE];
+            random.nextBytes(content);
+            filesByName.put(String.format("pageviews-201607%02d-110000.gz", i + 1), content);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(DIRECTORY_PATH, this::handleRequest);
+        server.start();
+        System.setProperty(WikimediaFileDownloader.TARGET_PROPERTY,
+                fileSystem.getUri() + TARGET_PATH + "/{yyyy}/{mm}/");
+        System.setProperty(WikimediaFileDownloader.MAX_ATTEMPTS_PROPERTY, "2");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        fileSystem.delete(new Path(TARGET_PATH), true);
+    }
+
+    @Test
+    public void filesAreCopiedAndMarkedAsVerified() throws Exception {
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        for (Map.Entry<String, byte[]> file : filesByName.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), read(targetPath(file.getKey())));
+            assertEquals(md5(file.getValue()), new String(
+                    read(targetPath("." + file.getKey() + ".md5")), StandardCharsets.UTF_8));
+            assertFalse(fileSystem.exists(targetPath("." + file.getKey() + ".part")));
+        }
+    }
+
+    @Test
+    public void verifiedFilesAreSkipped() throws Exception {
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        fileRequests.clear();
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        assertTrue(fileRequests.isEmpty());
+    }
+
+    @Test
+    public void fileWithoutMarkerIsCopiedAgain() throws Exception {
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        fileRequests.clear();
+        String fileName = "pageviews-20160702-110000.gz";
+        // e.g., a copy that completed, but was not verified before the downloader was killed
+        fileSystem.delete(targetPath("." + fileName + ".md5"), false);
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        assertEquals(Arrays.asList(fileName + " (no range)"), fileRequests);
+        assertArrayEquals(filesByName.get(fileName), read(targetPath(fileName)));
+        assertTrue(fileSystem.exists(targetPath("." + fileName + ".md5")));
+    }
+
+    @Test
+    public void interruptedFileIsResumedByNextAttempt() throws Exception {
+        String fileName = "pageviews-20160702-110000.gz";
+        interruptedFileName = fileName;
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        List<String> requestsOfFile = new ArrayList<>();
+        for (String fileRequest : fileRequests) {
+            if (fileRequest.startsWith(fileName)) {
+                requestsOfFile.add(fileRequest);
+            }
+        }
+        assertEquals(Arrays.asList(fileName + " (no range)",
+                fileName + " bytes=" + (FILE_SIZE / 2) + "-"), requestsOfFile);
+        assertArrayEquals(filesByName.get(fileName), read(targetPath(fileName)));
+        assertEquals(md5(filesByName.get(fileName)), new String(
+                read(targetPath("." + fileName + ".md5")), StandardCharsets.UTF_8));
+        assertFalse(fileSystem.exists(targetPath("." + fileName + ".part")));
+    }
+
+    private List<String> getUrlStrings() {
+        List<String> urlStrings = new ArrayList<>();
+        for (String fileName : filesByName.keySet()) {
+            urlStrings.add("http://localhost:" + server.getAddress().getPort()
+                    + DIRECTORY_PATH + fileName);
+        }
+        return urlStrings;
+    }
+
+    private static Path targetPath(String fileName) {
+        return new Path(TARGET_PATH + "/2016/07/" + fileName);
+    }
+
+    private static byte[] read(Path path) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream inputStream = fileSystem.open(path)) {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String fileName = exchange.getRequestURI().getPath().substring(DIRECTORY_PATH.length());
+        if (fileName.equals("md5sums.txt")) {
+            StringBuilder md5sums = new StringBuilder();
+            for (Map.Entry<String, byte[]> file : filesByName.entrySet()) {
+                md5sums.append(md5(file.getValue())).append("  ").append(file.getKey())
+                        .append('\n');
+            }
+            byte[] bytes = md5sums.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+            return;
+        }
+        byte[] content = filesByName.get(fileName);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        fileRequests.add(fileName + " " + (range == null ? "(no range)" : range));
+        if (range == null) {
+            exchange.sendResponseHeaders(200, content.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            if (fileName.equals(interruptedFileName)) {
+                // the first response breaks off midway (once)
+                interruptedFileName = null;
+                outputStream.write(content, 0, content.length / 2);
+                outputStream.flush();
+                exchange.close();
+                return;
+            }
+            outputStream.write(content);
+            outputStream.close();
+            return;
+        }
+        // e.g., "bytes=131072-"
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        if (start >= content.length) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Range",
+                "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+        exchange.sendResponseHeaders(206, content.length - start);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(content, start, content.length - start);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.bigdatademos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the parallel copy of WikimediaFileDownloader against a stand-in dumps
+ * server (an embedded HTTP server), which serves each file slowly enough for
+ * concurrent downloads to overlap.
+ *
+ * @author Daniel Vimont
+ */
+public class WikimediaFileDownloaderTest {
+
+    private static final String DIRECTORY_PATH = "/other/pageviews/2016/2016-07/";
+    private static final int FILE_COUNT = 12;
+    private static final int FILE_SIZE = 64 * 1024;
+    private static final long SERVING_MILLIS = 100;
+    private static final String[] PROPERTIES = {
+        WikimediaFileDownloader.TARGET_PROPERTY,
+        WikimediaFileDownloader.THREADS_PROPERTY,
+        WikimediaFileDownloader.MAX_CONNECTIONS_PER_HOST_PROPERTY,
+        WikimediaFileDownloader.MAX_ATTEMPTS_PROPERTY,
+    };
+
+    private HttpServer server;
+    private File targetDirectory;
+    private final Map<String, byte[]> filesByName = new LinkedHashMap<>();
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final AtomicInteger peakDownloadsInFlight = new AtomicInteger();
+    private String corruptedFileName;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] content = new byte[FILE_SIZE];
+            Arrays.fill(content, (byte) i);
+            filesByName.put(String.format("pageviews-201607%02d-110000.gz", i + 1), content);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(DIRECTORY_PATH, this::handleRequest);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        targetDirectory = Files.createTempDirectory("wikitrends-download").toFile();
+        System.setProperty(WikimediaFileDownloader.TARGET_PROPERTY,
+                targetDirectory.toURI().toString());
+        System.setProperty(WikimediaFileDownloader.MAX_ATTEMPTS_PROPERTY, "1");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        delete(targetDirectory);
+    }
+
+    @Test
+    public void filesAreCopiedConcurrentlyWithinPerHostCap() throws Exception {
+        System.setProperty(WikimediaFileDownloader.THREADS_PROPERTY, "4");
+        System.setProperty(WikimediaFileDownloader.MAX_CONNECTIONS_PER_HOST_PROPERTY, "2");
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        for (Map.Entry<String, byte[]> file : filesByName.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(),
+                    Files.readAllBytes(new File(targetDirectory, file.getKey()).toPath()));
+            assertTrue(new File(targetDirectory, "." + file.getKey() + ".md5").exists());
+        }
+        assertEquals(2, peakDownloadsInFlight.get());
+    }
+
+    @Test
+    public void filesAreCopiedIntoYearAndMonthDirectoriesOfFileUri() throws Exception {
+        System.setProperty(WikimediaFileDownloader.TARGET_PROPERTY,
+                "file://" + targetDirectory.getAbsolutePath() + "/{yyyy}/{mm}/");
+        WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+        File monthDirectory = new File(targetDirectory, "2016/07");
+        for (Map.Entry<String, byte[]> file : filesByName.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(),
+                    Files.readAllBytes(new File(monthDirectory, file.getKey()).toPath()));
+            assertEquals(md5(file.getValue()), new String(Files.readAllBytes(
+                    new File(monthDirectory, "." + file.getKey() + ".md5").toPath()),
+                    StandardCharsets.UTF_8));
+            assertFalse(new File(monthDirectory, "." + file.getKey() + ".part").exists());
+        }
+        // (the raw local file system is used, which writes no ".crc" files)
+        assertEquals(2 * FILE_COUNT, monthDirectory.list().length);
+    }
+
+    @Test
+    public void corruptedFileFailsWithoutStoppingOthers() throws Exception {
+        corruptedFileName = "pageviews-20160703-110000.gz";
+        System.setProperty(WikimediaFileDownloader.THREADS_PROPERTY, "4");
+        try {
+            WikimediaFileDownloader.copyRemoteFiles(getUrlStrings());
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("1 of " + FILE_COUNT + " files failed to be copied", ex.getMessage());
+        }
+        assertFalse(new File(targetDirectory, corruptedFileName).exists());
+        assertEquals(FILE_COUNT - 1, targetDirectory.list((directory, name)
+                -> name.startsWith("pageviews-")).length);
+        assertTrue(peakDownloadsInFlight.get() <= 4);
+    }
+
+    @Test
+    public void malformedUrlFailsWithoutStoppingOthers() throws Exception {
+        List<String> urlStrings = getUrlStrings();
+        urlStrings.add("htp://localhost" + DIRECTORY_PATH + "pageviews-20160731-110000.gz");
+        try {
+            WikimediaFileDownloader.copyRemoteFiles(urlStrings);
+            fail("expected IOException");
+        } catch (IOException ex) {
+            assertEquals("1 of " + (FILE_COUNT + 1) + " files failed to be copied",
+                    ex.getMessage());
+        }
+        assertEquals(FILE_COUNT, targetDirectory.list((directory, name)
+                -> name.startsWith("pageviews-")).length);
+    }
+
+    private List<String> getUrlStrings() {
+        List<String> urlStrings = new ArrayList<>();
+        for (String fileName : filesByName.keySet()) {
+            urlStrings.add("http://localhost:" + server.getAddress().getPort()
+                    + DIRECTORY_PATH + fileName);
+        }
+        return urlStrings;
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        String fileName = exchange.getRequestURI().getPath().substring(DIRECTORY_PATH.length());
+        if (fileName.equals("md5sums.txt")) {
+            StringBuilder md5sums = new StringBuilder();
+            for (Map.Entry<String, byte[]> file : filesByName.entrySet()) {
+                md5sums.append(md5(file.getKey().equals(corruptedFileName)
+                        ? new byte[0] : file.getValue()))
+                        .append("  ").append(file.getKey()).append('\n');
+            }
+            respond(exchange, md5sums.toString().getBytes(StandardCharsets.UTF_8), 0, () -> { });
+            return;
+        }
+        byte[] content = filesByName.get(fileName);
+        if (content == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        peakDownloadsInFlight.accumulateAndGet(downloadsInFlight.incrementAndGet(), Math::max);
+        // (a download is no longer counted once its last bytes are sent, as the
+        //   client may then complete it and start another before this thread resumes)
+        respond(exchange, content, SERVING_MILLIS, downloadsInFlight::decrementAndGet);
+    }
+
+    /**
+     * Sends the first half of the content, and the rest after a pause.
+     *
+     * @param beforeLastBytes run before the rest of the content is sent (or upon failure)
+     */
+    private static void respond(HttpExchange exchange, byte[] content, long pauseMillis,
+            Runnable beforeLastBytes) throws IOException {
+        boolean lastBytesPending = true;
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(content, 0, content.length / 2);
+            outputStream.flush();
+            if (pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+            lastBytesPending = false;
+            beforeLastBytes.run();
+            outputStream.write(content, content.length / 2, content.length - content.length / 2);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (lastBytesPending) {
+                beforeLastBytes.run();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}